@@ -0,0 +1,470 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.jar.JarFile;
+
+/**
+ * Process-wide cache of opened archives and their entry trees, used by
+ * FileFactory. Archives are keyed by canonical path and reopened when
+ * their size or modification time changes. The least recently used
+ * archives are evicted when the total number of entries or the estimated
+ * tree memory exceeds the limits. An evicted archive is closed once the
+ * last ZipEntryFile using it has been closed. Archives are opened outside
+ * the cache's lock; concurrent requests for an archive being opened wait
+ * for that opening.
+ *
+ * With setReadHandles, archives are opened for concurrent reads: entries
+ * are read through a pool of channels and reusable inflaters instead of
+ * the shared JarFile. Signed jars are always read through the JarFile, so
+ * that their signatures are checked.
+ *
+ * Archives nested in compressed entries are read from memory. The inflated
+ * bytes are kept here, least recently used evicted first, up to a limit of
+ * their own; larger archives are inflated for each opening.
+ */
+
+public class ArchiveCache {
+    private static final ArchiveCache instance = new ArchiveCache();
+
+    private LinkedHashMap<String, Archive> archives;
+    private HashMap<String, Loading> loading;
+    private LinkedHashMap<String, ByteBuffer> inflated;
+    private long maxEntries, maxMemory, entries, memory;
+    private long maxInflated, inflatedSize;
+    private long hits, misses, evictions;
+    private int readHandles;
+
+    //----------------------------------------------------------------------
+
+    ArchiveCache() {
+        archives = new LinkedHashMap<String, Archive>(16, 0.75f, true);
+        loading = new HashMap<String, Loading>();
+        maxEntries = 1000000;
+        maxMemory = 256L * 1024 * 1024;
+        inflated = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+        maxInflated = 64L * 1024 * 1024;
+    }
+
+    //----------------------------------------------------------------------
+
+    public static ArchiveCache getInstance() {
+        return instance;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Remove all archives. Archives in use are closed when released.
+     */
+
+    public synchronized void clear() {
+        for (Iterator<Archive> it = archives.values().iterator(); it.hasNext(); ) {
+            Archive archive = it.next();
+
+            it.remove();
+            evict(archive);
+        }
+
+        inflated.clear();
+        inflatedSize = 0;
+    }
+
+    //----------------------------------------------------------------------
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    //----------------------------------------------------------------------
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return the heap used by the indexes of the cached entry trees.
+     */
+
+    public synchronized long getMemory() {
+        return memory;
+    }
+
+    //----------------------------------------------------------------------
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return a file in an archive, sharing the opened archive and its tree
+     * with other files from the same archive.
+     *
+     * @param file Archive file.
+     * @param path Path inside the archive.
+     */
+
+    public ZipEntryFile open(File file, String path)
+            throws IOException {
+        return new ZipEntryFile(acquire(file), path);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Set the limits for the total number of cached entries and their
+     * estimated memory.
+     */
+
+    public synchronized void setLimits(long maxEntries, long maxMemory) {
+        this.maxEntries = maxEntries;
+        this.maxMemory = maxMemory;
+        trim();
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Set the memory for inflated nested archives; 0 disables caching them.
+     */
+
+    public synchronized void setNestedLimit(long bytes) {
+        maxInflated = bytes;
+        trimInflated();
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Set the number of read handles of archives opened from now on; 0,
+     * the default, reads through the JarFile only.
+     */
+
+    public synchronized void setReadHandles(int handles) {
+        readHandles = handles;
+    }
+
+    //----------------------------------------------------------------------
+
+    public synchronized int size() {
+        return archives.size();
+    }
+
+    //----------------------------------------------------------------------
+
+    public synchronized String toString() {
+        return "ArchiveCache: " + archives.size() + " archives, " + entries + " entries, "
+                + memory + " bytes, " + hits + " hits, " + misses + " misses, " + evictions + " evictions";
+    }
+
+    //----------------------------------------------------------------------
+
+    Archive acquire(File file)
+            throws IOException {
+        String key = file.getCanonicalPath();
+        File canonical = new File(key);
+        long size = canonical.length(),
+                time = canonical.lastModified();
+        Loading load;
+        int handles;
+
+        synchronized (this) {
+            for (; ; ) {
+                Archive archive = archives.get(key);
+
+                if (archive != null) {
+                    if (archive.size == size && archive.time == time) {
+                        ++hits;
+                        ++archive.refs;
+                        return archive;
+                    }
+
+                    // Archive has changed
+
+                    archives.remove(key);
+                    evict(archive);
+                }
+
+                load = loading.get(key);
+
+                if (load == null)
+                    break;
+
+                // Opened by another thread; if that fails, try again
+
+                ++load.waiters;
+
+                try {
+                    while (!load.done)
+                        wait();
+                } catch (InterruptedException ex) {
+                    --load.waiters;
+                    throw new InterruptedIOException();
+                }
+
+                if (load.archive != null) {
+                    ++hits;
+                    return load.archive;
+                }
+            }
+
+            ++misses;
+            load = new Loading();
+            loading.put(key, load);
+            handles = readHandles;
+        }
+
+        Archive a = null;
+
+        try {
+            a = open(canonical, key, size, time, handles);
+        } finally {
+            synchronized (this) {
+                loading.remove(key);
+
+                if (a != null) {
+                    a.refs = 1 + load.waiters;
+                    archives.put(key, a);
+                    entries += a.entries;
+                    memory += a.memory;
+                    trim();
+                }
+
+                load.archive = a;
+                load.done = true;
+                notifyAll();
+            }
+        }
+
+        return a;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Open an archive and build its tree; on failure everything opened so
+     * far is closed.
+     */
+
+    private Archive open(File file, String key, long size, long time, int handles)
+            throws IOException {
+        JarFile jar = new JarFile(file);
+        Archive a = new Archive(key, jar, size, time);
+        boolean ok = false;
+
+        try {
+            if (handles > 0)
+                a.pool = openPool(file, a, handles);
+
+            if (a.pool == null)
+                a.root = ZipEntryFile.buildTree(jar);
+
+            a.entries = jar.size();
+            a.memory = a.root.getIndex().getMemory();
+            ok = true;
+            return a;
+        } finally {
+            if (!ok)
+                a.close();
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Open a read pool and build the tree, with entry offsets, from the
+     * central directory. Return null for signed jars.
+     */
+
+    private ArchivePool openPool(File file, Archive a, int handles)
+            throws IOException {
+        ArchivePool pool = new ArchivePool(file, handles);
+        boolean ok = false;
+
+        try {
+            ArrayList<ZipDirectory.Entry> entries = ZipDirectory.read(pool.channel()).getEntries();
+
+            for (int i = 0; i < entries.size(); ++i) {
+                String name = entries.get(i).name.toUpperCase(Locale.ROOT);
+
+                if (name.startsWith("META-INF/") && (name.endsWith(".SF") || name.endsWith(".RSA")
+                        || name.endsWith(".DSA") || name.endsWith(".EC")))
+                    return null;
+            }
+
+            a.root = new ZipNode(ZipIndex.build(entries, 0, 0, 0), 0, null);
+            ok = true;
+            return pool;
+        } finally {
+            if (!ok)
+                pool.close();
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return the inflated bytes of a nested archive, null if not cached.
+     */
+
+    synchronized ByteBuffer getInflated(String key) {
+        ByteBuffer buf = inflated.get(key);
+
+        return buf != null ? buf.duplicate() : null;
+    }
+
+    //----------------------------------------------------------------------
+
+    synchronized void putInflated(String key, ByteBuffer buf) {
+        if (buf.limit() > maxInflated || inflated.containsKey(key))
+            return;
+
+        inflated.put(key, buf);
+        inflatedSize += buf.limit();
+        trimInflated();
+    }
+
+    //----------------------------------------------------------------------
+
+    private void trimInflated() {
+        Iterator<ByteBuffer> it = inflated.values().iterator();
+
+        while (inflatedSize > maxInflated && it.hasNext()) {
+            inflatedSize -= it.next().limit();
+            it.remove();
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    private void evict(Archive archive) {
+        ++evictions;
+        entries -= archive.entries;
+        memory -= archive.memory;
+        archive.evicted = true;
+
+        if (archive.refs == 0)
+            archive.close();
+    }
+
+    //----------------------------------------------------------------------
+
+    synchronized void release(Archive archive) {
+        if (--archive.refs == 0 && archive.evicted)
+            archive.close();
+    }
+
+    //----------------------------------------------------------------------
+
+    synchronized void retain(Archive archive) {
+        ++archive.refs;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Evict least recently used archives until the limits are met. The
+     * most recent archive is kept even if it exceeds the limits alone.
+     */
+
+    private void trim() {
+        Iterator<Archive> it = archives.values().iterator();
+
+        while ((entries > maxEntries || memory > maxMemory) && archives.size() > 1) {
+            Archive archive = it.next();
+
+            it.remove();
+            evict(archive);
+        }
+    }
+
+    //----------------------------------------------------------------------
+    //----------------------------------------------------------------------
+
+    class Archive {
+        String key;
+        JarFile jar;
+        ZipNode root;
+        ArchivePool pool;
+        long size, time, entries, memory;
+        int refs;
+        boolean evicted;
+
+        //----------------------------------------------------------------------
+
+        Archive(String key, JarFile jar, long size, long time) {
+            this.key = key;
+            this.jar = jar;
+            this.size = size;
+            this.time = time;
+        }
+
+        //----------------------------------------------------------------------
+
+        void close() {
+            try {
+                jar.close();
+            } catch (IOException ex) {
+            }
+
+            try {
+                if (pool != null)
+                    pool.close();
+            } catch (IOException ex) {
+            }
+        }
+
+        //----------------------------------------------------------------------
+
+        void release() {
+            ArchiveCache.this.release(this);
+        }
+
+        //----------------------------------------------------------------------
+
+        void retain() {
+            ArchiveCache.this.retain(this);
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Archive being opened. Threads waiting for it are counted, so that
+     * their references are in place before it can be evicted.
+     */
+
+    static class Loading {
+        Archive archive;
+        int waiters;
+        boolean done;
+    }
+}
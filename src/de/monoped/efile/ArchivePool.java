@@ -0,0 +1,133 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Read handles of one archive for concurrent readers: a fixed set of
+ * channels used in turn with positional reads, which take no lock, and a
+ * bounded pool of raw inflaters that are reset and reused instead of
+ * being created per stream.
+ */
+
+class ArchivePool
+        implements Closeable {
+    private FileChannel[] channels;
+    private AtomicInteger next, idle;
+    private ConcurrentLinkedQueue<Inflater> inflaters;
+    private int maxIdle;
+    private volatile boolean closed;
+
+    //----------------------------------------------------------------------
+
+    /**
+     * @param handles Number of channels; at most twice as many idle
+     *                inflaters are kept.
+     */
+
+    ArchivePool(File archive, int handles)
+            throws IOException {
+        channels = new FileChannel[Math.max(1, handles)];
+
+        try {
+            for (int i = 0; i < channels.length; ++i)
+                channels[i] = new FileInputStream(archive).getChannel();
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+
+        next = new AtomicInteger();
+        idle = new AtomicInteger();
+        inflaters = new ConcurrentLinkedQueue<Inflater>();
+        maxIdle = 2 * channels.length;
+    }
+
+    //----------------------------------------------------------------------
+
+    FileChannel channel() {
+        return channels[(next.getAndIncrement() & Integer.MAX_VALUE) % channels.length];
+    }
+
+    //----------------------------------------------------------------------
+
+    public void close()
+            throws IOException {
+        closed = true;
+
+        for (int i = 0; i < channels.length; ++i)
+            if (channels[i] != null)
+                channels[i].close();
+
+        Inflater inflater;
+
+        while ((inflater = inflaters.poll()) != null)
+            inflater.end();
+    }
+
+    //----------------------------------------------------------------------
+
+    Inflater getInflater() {
+        Inflater inflater = inflaters.poll();
+
+        if (inflater == null)
+            return new Inflater(true);
+
+        idle.decrementAndGet();
+        return inflater;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Open the uncompressed data of an entry.
+     *
+     * @param headerOffset Offset of the entry's local header.
+     */
+
+    InputStream open(long headerOffset, ZipEntry entry)
+            throws IOException {
+        return EntryInputStream.open(ZipDirectory.reader(channel()), false, headerOffset, entry, this);
+    }
+
+    //----------------------------------------------------------------------
+
+    void release(Inflater inflater) {
+        if (!closed) {
+            if (idle.incrementAndGet() <= maxIdle) {
+                inflater.reset();
+                inflaters.offer(inflater);
+                return;
+            }
+
+            idle.decrementAndGet();
+        }
+
+        inflater.end();
+    }
+}
@@ -0,0 +1,64 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Positional reader for data held in memory. Reads do not change the
+ * buffer, so several threads may read at once.
+ */
+
+class BufferReader
+        implements PositionalReader {
+    private ByteBuffer buffer;
+
+    //----------------------------------------------------------------------
+
+    BufferReader(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    //----------------------------------------------------------------------
+
+    public void close() {
+    }
+
+    //----------------------------------------------------------------------
+
+    public int read(long position, ByteBuffer dst) {
+        int size = buffer.limit();
+
+        if (position >= size)
+            return -1;
+
+        ByteBuffer part = buffer.duplicate();
+        int n = (int) Math.min(dst.remaining(), size - position);
+
+        part.position((int) position);
+        part.limit((int) position + n);
+        dst.put(part);
+        return n;
+    }
+
+    //----------------------------------------------------------------------
+
+    public long size() {
+        return buffer.limit();
+    }
+}
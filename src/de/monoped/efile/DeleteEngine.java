@@ -0,0 +1,224 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Recursive delete shared by the backends. Directories are listed and
+ * emptied by fork/join tasks, so idle workers steal subtrees from busy
+ * ones. Remote backends give each worker thread its own channel.
+ * The first failure, checked or not, stops all workers and is rethrown.
+ * A directory that vanishes meanwhile counts as deleted.
+ */
+
+class DeleteEngine {
+    static final int REMOTE_PARALLELISM = 4;
+
+    // Files of one directory are deleted in batches of this size
+
+    private static final int BATCH = 256;
+
+    private Ops ops;
+    private ProgressListener listener;
+    private AtomicLong count;
+    private AtomicReference<Throwable> failure;
+
+    //----------------------------------------------------------------------
+
+    private DeleteEngine(Ops ops, ProgressListener listener) {
+        this.ops = ops;
+        this.listener = listener;
+        count = new AtomicLong();
+        failure = new AtomicReference<Throwable>();
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Delete a directory tree.
+     *
+     * @param path        Root of the tree.
+     * @param ops         Backend operations, closed when done.
+     * @param parallelism Number of worker threads.
+     * @param listener    Progress listener, may be null.
+     */
+
+    static void delete(String path, Ops ops, int parallelism, ProgressListener listener)
+            throws IOException {
+        DeleteEngine engine = new DeleteEngine(ops, listener);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        try {
+            pool.invoke(engine.new DirTask(path));
+        } finally {
+            pool.shutdown();
+            ops.close();
+        }
+
+        Throwable ex = engine.failure.get();
+
+        if (ex instanceof IOException)
+            throw (IOException) ex;
+
+        if (ex instanceof RuntimeException)
+            throw (RuntimeException) ex;
+
+        if (ex instanceof Error)
+            throw (Error) ex;
+    }
+
+    //----------------------------------------------------------------------
+
+    private void done(String path) {
+        long n = count.incrementAndGet();
+
+        if (listener != null)
+            listener.progress(path, n);
+    }
+
+    //----------------------------------------------------------------------
+
+    private boolean failed() {
+        return failure.get() != null;
+    }
+
+    //----------------------------------------------------------------------
+
+    private void fail(Throwable ex) {
+        failure.compareAndSet(null, ex);
+    }
+
+    //----------------------------------------------------------------------
+    //----------------------------------------------------------------------
+
+    /**
+     * Backend operations. Implementations must allow calls from several
+     * threads at once; list returns null for a directory that is gone, and
+     * deleting a file that is gone succeeds.
+     */
+
+    interface Ops {
+        FileEntry[] list(String dir) throws IOException;
+
+        void deleteFile(String path) throws IOException;
+
+        void deleteDir(String path) throws IOException;
+
+        void close();
+    }
+
+    //----------------------------------------------------------------------
+    //----------------------------------------------------------------------
+
+    class DirTask
+            extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private String path;
+
+        //----------------------------------------------------------------------
+
+        DirTask(String path) {
+            this.path = path;
+        }
+
+        //----------------------------------------------------------------------
+
+        protected void compute() {
+            if (failed())
+                return;
+
+            try {
+                FileEntry[] children = ops.list(path);
+
+                if (children == null)
+                    return;
+
+                String parent = path.endsWith("/") ? path : path + "/";
+                ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+                ArrayList<String> files = new ArrayList<String>();
+
+                for (int i = 0; i < children.length; ++i) {
+                    String name = children[i].getName();
+
+                    if (name.equals(".") || name.equals(".."))
+                        continue;
+
+                    if (children[i].isDirectory())
+                        tasks.add(new DirTask(parent + name));
+                    else {
+                        files.add(parent + name);
+
+                        if (files.size() == BATCH) {
+                            tasks.add(new FileTask(files));
+                            files = new ArrayList<String>();
+                        }
+                    }
+                }
+
+                if (files.size() > 0)
+                    tasks.add(new FileTask(files));
+
+                invokeAll(tasks);
+
+                if (!failed()) {
+                    ops.deleteDir(path);
+                    done(path);
+                }
+            } catch (Throwable ex) {
+                fail(ex);
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    class FileTask
+            extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private ArrayList<String> paths;
+
+        //----------------------------------------------------------------------
+
+        FileTask(ArrayList<String> paths) {
+            this.paths = paths;
+        }
+
+        //----------------------------------------------------------------------
+
+        protected void compute() {
+            try {
+                for (int i = 0; i < paths.size() && !failed(); ++i) {
+                    String path = paths.get(i);
+
+                    ops.deleteFile(path);
+                    done(path);
+                }
+            } catch (Throwable ex) {
+                fail(ex);
+            }
+        }
+    }
+}
@@ -18,7 +18,10 @@
 package de.monoped.efile;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * Extended file interface (actually a very simple virtual file system).
@@ -72,6 +75,17 @@ public interface EFile {
 
     void delete(boolean recursive) throws IOException;
 
+    /**
+     * Delete the file. If it is a directory and the parameter is true,
+     * delete the directory recursively, listing and deleting subtrees in
+     * parallel. Stops at the first failure.
+     *
+     * @param recursive If true, delete a directory recursively.
+     * @param listener  Receives a report for each deleted file, may be null.
+     */
+
+    void delete(boolean recursive, ProgressListener listener) throws IOException;
+
     /**
      * Check if file exists.
      */
@@ -90,6 +104,20 @@ public interface EFile {
 
     byte[] getBytes() throws IOException;
 
+    /**
+     * Return file content as a read-only buffer. Where the backend allows it,
+     * the buffer is a memory mapped view of the file instead of a copy.
+     */
+
+    ByteBuffer getByteBuffer() throws IOException;
+
+    /**
+     * Open a read-only channel on the file that can be positioned freely,
+     * reading only the parts that are asked for.
+     */
+
+    SeekableByteChannel getChannel() throws IOException;
+
     /**
      * Return the name (the last path component).
      */
@@ -126,6 +154,12 @@ public interface EFile {
 
     boolean isDirectory() throws IOException;
 
+    /**
+     * Return the file size in bytes.
+     */
+
+    long length() throws IOException;
+
     /**
      * Return contents of a directory as array of file names.
      */
@@ -140,6 +174,13 @@ public interface EFile {
 
     String[] list(FilenameFilter filter) throws IOException;
 
+    /**
+     * Return contents of a directory with type, size and modification time
+     * of each file, as delivered by a single listing.
+     */
+
+    FileEntry[] listEntries() throws IOException;
+
     /**
      * Return an iterator for file names in this directory.
      */
@@ -152,10 +193,53 @@ public interface EFile {
 
     void putBytes(byte[] bytes) throws IOException;
 
+    /**
+     * Read bytes starting at a file position without reading what comes
+     * before it. May read fewer bytes than the buffer has room for.
+     *
+     * @param position File position to start reading at.
+     * @param dst      Buffer to read into.
+     * @return Number of bytes read, -1 at end of file.
+     */
+
+    int read(long position, ByteBuffer dst) throws IOException;
+
+    /**
+     * Read several ranges of the file. The ranges are sorted, ranges less
+     * than 64 KB apart are merged, and the merged ranges are fetched
+     * concurrently.
+     *
+     * @param ranges Ranges to read.
+     * @return One buffer per range, in the order of the ranges. A buffer is
+     * short if its range extends beyond the end of the file.
+     */
+
+    ByteBuffer[] readVectored(List<FileRange> ranges) throws IOException;
+
+    /**
+     * Read several ranges of the file, merging ranges that are at most
+     * maxGap bytes apart.
+     *
+     * @param ranges Ranges to read.
+     * @param maxGap Largest gap between ranges that are fetched as one.
+     */
+
+    ByteBuffer[] readVectored(List<FileRange> ranges, int maxGap) throws IOException;
+
     void setPath(String path);
 
     void setName(String name);
 
+    /**
+     * Watch this directory and report created, modified and deleted entries
+     * until the returned handle is closed. Local directories are watched
+     * by the operating system, remote ones are polled.
+     *
+     * @param listener Receives the events.
+     */
+
+    Closeable watch(FileEventListener listener) throws IOException;
+
     String toString();
 }
 
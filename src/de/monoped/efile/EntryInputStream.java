@@ -0,0 +1,176 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Raw data of a zip entry, read from the archive at a known offset without
+ * a ZipFile. The archive may be a file or a region of another archive.
+ */
+
+class EntryInputStream
+        extends InputStream {
+    private PositionalReader reader;
+    private boolean owner;
+    private long pos, end;
+    private boolean dummy;
+
+    //----------------------------------------------------------------------
+
+    private EntryInputStream(PositionalReader reader, boolean owner, long pos, long length, boolean dummy) {
+        this.reader = reader;
+        this.owner = owner;
+        this.pos = pos;
+        this.dummy = dummy;
+        end = pos + length;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Open the uncompressed data of an entry.
+     *
+     * @param archive      Zip archive.
+     * @param headerOffset Offset of the entry's local header.
+     * @param entry        Entry with method and sizes.
+     */
+
+    static InputStream open(File archive, long headerOffset, ZipEntry entry)
+            throws IOException {
+        FileChannel channel = new FileInputStream(archive).getChannel();
+
+        try {
+            return open(new ChannelReader(channel, 0, channel.size(), true), true, headerOffset, entry, null);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Open the uncompressed data of an entry through a given reader.
+     *
+     * @param owner True if closing the stream closes the reader.
+     * @param pool  Pool to take the inflater from, null for a new one.
+     */
+
+    static InputStream open(PositionalReader reader, boolean owner, long headerOffset, ZipEntry entry,
+                            final ArchivePool pool)
+            throws IOException {
+        long offset = ZipDirectory.getDataOffset(reader, headerOffset);
+
+        if (entry.getMethod() == ZipEntry.STORED)
+            return new EntryInputStream(reader, owner, offset, entry.getSize(), false);
+
+        if (entry.getMethod() != ZipEntry.DEFLATED)
+            throw new ZipException(entry.getName() + ": unsupported compression method " + entry.getMethod());
+
+        // Raw inflater needs a dummy byte after the data, as ZipFile does
+
+        final Inflater inflater = pool != null ? pool.getInflater() : new Inflater(true);
+        int bufsize = (int) Math.min(LocalFile.BUFSIZE, Math.max(512, entry.getCompressedSize() + 1));
+
+        return new InflaterInputStream(new EntryInputStream(reader, owner, offset, entry.getCompressedSize(), true),
+                inflater, bufsize) {
+            private boolean closed;
+
+            public void close()
+                    throws IOException {
+                if (!closed) {
+                    closed = true;
+                    super.close();
+
+                    if (pool != null)
+                        pool.release(inflater);
+                    else
+                        inflater.end();
+                }
+            }
+        };
+    }
+
+    //----------------------------------------------------------------------
+
+    public int available() {
+        return (int) Math.min(end - pos, Integer.MAX_VALUE);
+    }
+
+    //----------------------------------------------------------------------
+
+    public void close()
+            throws IOException {
+        if (owner)
+            reader.close();
+    }
+
+    //----------------------------------------------------------------------
+
+    public int read()
+            throws IOException {
+        byte[] b = new byte[1];
+
+        return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+    }
+
+    //----------------------------------------------------------------------
+
+    public int read(byte[] b, int off, int len)
+            throws IOException {
+        if (len == 0)
+            return 0;
+
+        if (pos >= end) {
+            if (!dummy)
+                return -1;
+
+            dummy = false;
+            b[off] = 0;
+            return 1;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(b, off, (int) Math.min(len, end - pos));
+        int n = reader.read(pos, buf);
+
+        if (n < 0)
+            throw new ZipException("Unexpected end of archive");
+
+        pos += n;
+        return n;
+    }
+
+    //----------------------------------------------------------------------
+
+    public long skip(long n) {
+        long k = Math.max(0, Math.min(n, end - pos));
+
+        pos += k;
+        return k;
+    }
+}
@@ -0,0 +1,92 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+/**
+ * Directory entry with the attributes a listing delivers anyway: name,
+ * type, size and modification time.
+ */
+
+public class FileEntry {
+    public enum Type {
+        FILE, DIRECTORY, LINK, OTHER
+    }
+
+    private final String name;
+    private final Type type;
+    private final long size, lastModified;
+
+    //----------------------------------------------------------------------
+
+    FileEntry(String name, Type type, long size, long lastModified) {
+        this.name = name;
+        this.type = type;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return the modification time in milliseconds since the epoch, 0 if unknown.
+     */
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    //----------------------------------------------------------------------
+
+    public String getName() {
+        return name;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return the size in bytes, -1 if unknown.
+     */
+
+    public long getSize() {
+        return size;
+    }
+
+    //----------------------------------------------------------------------
+
+    public Type getType() {
+        return type;
+    }
+
+    //----------------------------------------------------------------------
+
+    public boolean isDirectory() {
+        return type == Type.DIRECTORY;
+    }
+
+    //----------------------------------------------------------------------
+
+    public boolean isFile() {
+        return type == Type.FILE;
+    }
+
+    //----------------------------------------------------------------------
+
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,74 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+/**
+ * Change of a directory entry, reported by a watch.
+ */
+
+public class FileEvent {
+    public enum Kind {
+        CREATED, MODIFIED, DELETED
+    }
+
+    private final Kind kind;
+    private final String path;
+    private final FileEntry entry;
+
+    //----------------------------------------------------------------------
+
+    FileEvent(Kind kind, String path, FileEntry entry) {
+        this.kind = kind;
+        this.path = path;
+        this.entry = entry;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return the entry attributes after the change, or the last known
+     * attributes of a deleted entry. May be null if the backend does not
+     * deliver attributes with its events.
+     */
+
+    public FileEntry getEntry() {
+        return entry;
+    }
+
+    //----------------------------------------------------------------------
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return the absolute path of the changed file.
+     */
+
+    public String getPath() {
+        return path;
+    }
+
+    //----------------------------------------------------------------------
+
+    public String toString() {
+        return kind + " " + path;
+    }
+}
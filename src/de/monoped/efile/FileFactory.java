@@ -21,11 +21,15 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URL;
-import java.util.jar.JarFile;
 
 // TODO:    Win testen, Pfadtrenner
 //          url = "/" korrekt behandeln?
 
+/**
+ * Creates files for resource URLs. Jar archives are opened through the
+ * shared ArchiveCache; close the returned file when done with it.
+ */
+
 public class FileFactory {
     static public EFile getResourceFile(URL url)
             throws IOException {
@@ -34,20 +38,8 @@ public class FileFactory {
         if (protocol.equals("file"))
             return new LocalFile(url.getPath());
 
-        if (protocol.equals("jar")) {
-            String path = url.getPath();
-
-            if (!path.startsWith("file:"))
-                throw new UnsupportedOperationException(path);
-
-            int n = path.indexOf("!");
-
-            String filePath = path.substring(n + 2) + "/",
-                    jarPath = path.substring(5, n);
-            ZipEntryFile zf = new ZipEntryFile(new JarFile(new File(jarPath)), filePath);
-
-            return zf;
-        }
+        if (protocol.equals("jar"))
+            return openJar(url.getPath());
 
         throw new UnsupportedOperationException(url.toString());
     }
@@ -72,19 +64,47 @@ public class FileFactory {
         if (protocol.equals("file"))
             return new LocalFile(path.substring(0, path.length() - urlString.length()) + "/" + urlString);
 
-        if (protocol.equals("jar")) {
-            if (!path.startsWith("file:"))
-                throw new UnsupportedOperationException(path);
+        if (protocol.equals("jar"))
+            return openJar(path);
 
-            int n = path.indexOf("!");
+        throw new UnsupportedOperationException(url.toString());
+    }
 
-            String filePath = path.substring(n + 2) + "/",
-                    jarPath = path.substring(5, n);
+    //----------------------------------------------------------------------
 
-            return new ZipEntryFile(new JarFile(new File(jarPath)), filePath);
+    /**
+     * Open a file from the path of a jar URL, file:/a.jar!/b/c. Archives
+     * nested in the jar, as in file:/a.war!/WEB-INF/lib/b.jar!/c or
+     * jar:file:/a.war!/WEB-INF/lib/b.jar!/c, are opened in place.
+     */
+
+    private static EFile openJar(String path)
+            throws IOException {
+        while (path.startsWith("jar:"))
+            path = path.substring(4);
+
+        if (!path.startsWith("file:"))
+            throw new UnsupportedOperationException(path);
+
+        String[] parts = path.substring(5).split("!");
+
+        if (parts.length < 2)
+            throw new UnsupportedOperationException(path);
+
+        int last = parts.length - 1;
+        ZipEntryFile file = ArchiveCache.getInstance().open(new File(parts[0]), last == 1 ? parts[1] + "/" : parts[1]);
+
+        for (int i = 2; i <= last; ++i) {
+            ZipEntryFile outer = file;
+
+            try {
+                file = outer.openArchive(i == last ? parts[i] + "/" : parts[i]);
+            } finally {
+                outer.close();
+            }
         }
 
-        throw new UnsupportedOperationException(url.toString());
+        return file;
     }
 }
 
@@ -0,0 +1,61 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+/**
+ * Byte range of a file, for vectored reads.
+ */
+
+public class FileRange {
+    private final long offset;
+    private final int length;
+
+    //----------------------------------------------------------------------
+
+    public FileRange(long offset, int length) {
+        if (offset < 0 || length < 0)
+            throw new IllegalArgumentException(offset + "+" + length);
+
+        this.offset = offset;
+        this.length = length;
+    }
+
+    //----------------------------------------------------------------------
+
+    public long getEnd() {
+        return offset + length;
+    }
+
+    //----------------------------------------------------------------------
+
+    public int getLength() {
+        return length;
+    }
+
+    //----------------------------------------------------------------------
+
+    public long getOffset() {
+        return offset;
+    }
+
+    //----------------------------------------------------------------------
+
+    public String toString() {
+        return offset + "+" + length;
+    }
+}
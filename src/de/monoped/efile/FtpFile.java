@@ -20,22 +20,40 @@ package de.monoped.efile;
 import com.enterprisedt.net.ftp.FTPClient;
 import com.enterprisedt.net.ftp.FTPException;
 import com.enterprisedt.net.ftp.FTPFile;
-import com.enterprisedt.net.ftp.FTPTransferType;
+import com.enterprisedt.net.ftp.FTPInputStream;
+import com.enterprisedt.net.ftp.FTPReply;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.TimeZone;
+
+/**
+ * File on an FTP server. Operations borrow connections from the FtpPool
+ * of the server, so that several files, and the workers of vectored reads
+ * and recursive deletes, transfer concurrently. Directory listings are
+ * kept in the MetadataCache.
+ */
 
 public class FtpFile
         implements EFile {
-    private FTPClient client;
-    private String ftpdir;
+    static final int BUFSIZE = 256 * 1024;
+
+    private FtpPool pool;
     private String server;
     private String user;
+    private String password;
     private Path currentPath;
-    private HashMap<String, FTPFile[]> dirmap;
+    private MetadataCache cache;
 
     //----------------------------------------------------------------------
 
@@ -43,14 +61,19 @@ public class FtpFile
             throws IOException, FTPException {
         this.server = server;
         this.user = user;
+        this.password = password;
         currentPath = new Path(path);
-        dirmap = new HashMap<String, FTPFile[]>();
-        client = new FTPClient();
-        client.setRemoteHost(server);
-        client.connect();
-        client.user(user);
-        client.password(password);
-        client.setType(FTPTransferType.BINARY);
+        cache = MetadataCache.getInstance();
+        pool = FtpPool.acquire(server, user, password);
+
+        // Log in now, so that bad hosts and credentials fail here
+
+        try {
+            pool.release(pool.borrow());
+        } catch (IOException ex) {
+            pool.release();
+            throw ex;
+        }
     }
 
     //----------------------------------------------------------------------
@@ -61,12 +84,14 @@ public class FtpFile
 
     //----------------------------------------------------------------------
 
-    public void close()
-            throws IOException {
-        try {
-            client.quit();
-        } catch (FTPException ex) {
-            throw new IOException(ex);
+    /**
+     * Release the connection pool; the last file of a server closes it.
+     */
+
+    public void close() {
+        if (pool != null) {
+            pool.release();
+            pool = null;
         }
     }
 
@@ -81,15 +106,21 @@ public class FtpFile
 
     public void copyFrom(InputStream in)
             throws IOException {
-        OutputStream out = getOutputStream();
-        byte[] buf = new byte[4096];
-        int n;
+        try {
+            OutputStream out = getOutputStream();
 
-        while ((n = in.read(buf)) >= 0)
-            out.write(buf, 0, n);
+            try {
+                byte[] buf = new byte[BUFSIZE];
+                int n;
 
-        in.close();
-        out.close();
+                while ((n = in.read(buf)) >= 0)
+                    out.write(buf, 0, n);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
     }
 
     //----------------------------------------------------------------------
@@ -99,42 +130,56 @@ public class FtpFile
         if (currentPath.getPath().equals("/"))
             return;
 
-        try {
-            FTPFile curfile = getFtpFile();
+        final FTPFile curfile = getFtpFile(currentPath);
+        final String path = currentPath.getPath();
 
-            if (curfile == null)
-                return;
+        if (curfile == null)
+            return;
 
-            if (curfile.isDir())
-                client.rmdir(currentPath.getPath());
-            else
-                client.delete(currentPath.getPath());
-        } catch (Exception ex) {
-            throw new IOException(ex);
-        }
+        pool.call(new FtpPool.Task<Object>() {
+            public Object run(FTPClient ftp)
+                    throws IOException, FTPException {
+                if (curfile.isDir())
+                    ftp.rmdir(path);
+                else
+                    ftp.delete(path);
+
+                return null;
+            }
+        });
 
-        dirmap.remove(currentPath.getParentPath());
+        cache.changed(getBase(), path);
     }
 
     //----------------------------------------------------------------------
 
     public void delete(boolean recursive)
             throws IOException {
+        delete(recursive, null);
+    }
+
+    //----------------------------------------------------------------------
+
+    public void delete(boolean recursive, ProgressListener listener)
+            throws IOException {
         if (!recursive || !isDirectory())
             delete();
-        else
-            deleteDir(currentPath.getPath());
+        else {
+            try {
+                DeleteEngine.delete(currentPath.getPath(), new FtpDeleteOps(),
+                        DeleteEngine.REMOTE_PARALLELISM, listener);
+            } finally {
+                cache.invalidateTree(getBase(), currentPath.getPath());
+                cache.changed(getBase(), currentPath.getPath());
+            }
+        }
     }
 
     //----------------------------------------------------------------------
 
     public boolean exists()
             throws IOException {
-        try {
-            return currentPath.getPath().equals("/") || getFtpFile() != null;
-        } catch (Exception ex) {
-            throw new IOException(ex.getMessage());
-        }
+        return currentPath.getPath().equals("/") || getFtpFile(currentPath) != null;
     }
 
     //----------------------------------------------------------------------
@@ -147,37 +192,54 @@ public class FtpFile
 
     public byte[] getBytes()
             throws IOException {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-
-        try {
-            client.get(stream, currentPath.getPath());
-        } catch (FTPException ex) {
-            throw new IOException(ex.getMessage());
-        }
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final String path = currentPath.getPath();
+
+        pool.call(new FtpPool.Task<Object>() {
+            public Object run(FTPClient ftp)
+                    throws IOException, FTPException {
+                ftp.get(stream, path);
+                return null;
+            }
+        });
 
         return stream.toByteArray();
     }
 
     //----------------------------------------------------------------------
 
-    public InputStream getInputStream()
+    /**
+     * Download into a buffer presized from SIZE, so the content is
+     * copied once.
+     */
+
+    public ByteBuffer getByteBuffer()
             throws IOException {
-        final PipedOutputStream pout = new PipedOutputStream();
+        String path = currentPath.getPath();
+        long size = new FtpReader(path).size();
 
-        Thread t = new Thread() {
-            public void run() {
-                try {
-                    client.get(pout, currentPath.getPath());
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                }
-            }
-        };
+        if (size > Integer.MAX_VALUE)
+            throw new IOException(path + ": too large for a buffer (" + size + " bytes)");
 
-        FtpInputStream pin = new FtpInputStream(pout, t);
+        return Utils.readBuffer(getInputStream(), size);
+    }
 
-        t.start();
-        return pin;
+    //----------------------------------------------------------------------
+
+    public SeekableByteChannel getChannel() {
+        return new ReadChannel(new FtpReader(currentPath.getPath()));
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Open a download on a connection of its own; closing the stream
+     * completes it.
+     */
+
+    public InputStream getInputStream()
+            throws IOException {
+        return new FtpInputStream(pool, currentPath.getPath());
     }
 
     //----------------------------------------------------------------------
@@ -188,24 +250,27 @@ public class FtpFile
 
     //----------------------------------------------------------------------
 
+    /**
+     * Open an upload on a connection of its own; closing the stream
+     * completes it and reports a failed transfer.
+     */
+
     public OutputStream getOutputStream()
             throws IOException {
-        final PipedInputStream pin = new PipedInputStream();
+        final String path = currentPath.getPath();
 
-        Thread t = new Thread() {
-            public void run() {
+        cache.changed(getBase(), path);
+
+        return new FtpOutputStream(pool, path) {
+            public void close()
+                    throws IOException {
                 try {
-                    client.put(pin, currentPath.getPath());
-                } catch (Exception ex) {
-                    ex.printStackTrace();
+                    super.close();
+                } finally {
+                    cache.changed(getBase(), path);
                 }
             }
         };
-
-        FtpOutputStream pout = new FtpOutputStream(pin, t);
-
-        t.start();
-        return pout;
     }
 
     //----------------------------------------------------------------------
@@ -224,13 +289,9 @@ public class FtpFile
 
     public boolean isDirectory()
             throws IOException {
-        try {
-            FTPFile curfile = getFtpFile();
+        FTPFile curfile = getFtpFile(currentPath);
 
-            return curfile != null && curfile.isDir();
-        } catch (Exception ex) {
-            throw new IOException(ex.getMessage());
-        }
+        return curfile != null && curfile.isDir();
     }
 
     //----------------------------------------------------------------------
@@ -249,21 +310,24 @@ public class FtpFile
 
     //----------------------------------------------------------------------
 
+    public long length()
+            throws IOException {
+        return new FtpReader(currentPath.getPath()).size();
+    }
+
+    //----------------------------------------------------------------------
+
     public String[] list()
             throws IOException {
-        try {
-            FTPFile[] children = getChildren(currentPath.getPath());
+        FTPFile[] children = getChildren(currentPath.getPath());
 
-            if (children != null) {
-                String[] names = new String[children.length];
+        if (children != null) {
+            String[] names = new String[children.length];
 
-                for (int i = 0; i < children.length; ++i)
-                    names[i] = children[i].getName();
+            for (int i = 0; i < children.length; ++i)
+                names[i] = children[i].getName();
 
-                return names;
-            }
-        } catch (FTPException ex) {
-            throw new IOException(ex.getMessage());
+            return names;
         }
 
         return null;
@@ -273,23 +337,19 @@ public class FtpFile
 
     public String[] list(FilenameFilter filter)
             throws IOException {
-        try {
-            FTPFile[] children = getChildren(currentPath.getPath());
-
-            if (children != null) {
-                ArrayList<String> show = new ArrayList<String>();
+        FTPFile[] children = getChildren(currentPath.getPath());
 
-                for (int i = 0; i < children.length; ++i) {
-                    String name = children[i].getName();
+        if (children != null) {
+            ArrayList<String> show = new ArrayList<String>();
 
-                    if (filter.accept(null, name))
-                        show.add(name);
-                }
+            for (int i = 0; i < children.length; ++i) {
+                String name = children[i].getName();
 
-                return show.toArray(new String[0]);
+                if (filter.accept(null, name))
+                    show.add(name);
             }
-        } catch (FTPException ex) {
-            throw new IOException(ex.getMessage());
+
+            return show.toArray(new String[0]);
         }
 
         return null;
@@ -297,41 +357,67 @@ public class FtpFile
 
     //----------------------------------------------------------------------
 
-    public boolean mkdirs()
+    public FileEntry[] listEntries()
             throws IOException {
-        String[] comps = currentPath.getPath().split("/");
+        FTPFile[] children = getChildren(currentPath.getPath());
 
-        String wd = "/";
+        return children != null ? toEntries(children) : null;
+    }
 
-        try {
-            for (int i = 0; i < comps.length; ++i) {
-                String comp = comps[i];
+    //----------------------------------------------------------------------
 
-                if (comp.length() > 0) {
-                    FTPFile[] files = getChildren(wd);
-                    boolean found = false;
+    /**
+     * List the tree below this directory. Servers that list recursively
+     * (STAT -R, LIST -R) answer in one round trip; the other directories
+     * are listed in parallel. All listings go into the MetadataCache.
+     *
+     * @return Entries of each directory, by path.
+     */
 
-                    for (int j = 0; j < files.length; ++j) {
-                        FTPFile file = files[j];
+    public Map<String, FileEntry[]> listTree()
+            throws IOException {
+        return FtpTreeListing.list(pool, getBase(), currentPath.getPath(), DeleteEngine.REMOTE_PARALLELISM);
+    }
 
-                        if (file.getName().equals(comp)) {
-                            found = true;
-                            break;
-                        }
-                    }
+    //----------------------------------------------------------------------
 
-                    String wdnew = wd.endsWith("/") ? wd + comp : wd + "/" + comp;
+    /**
+     * Create the missing directories of the path. MKD is tried from the
+     * path upwards until it succeeds or CWD finds an existing directory;
+     * the directories below are then created downwards. No directory is
+     * listed unless a component cannot be created, to tell a file in the
+     * way from other failures. A directory created meanwhile by someone
+     * else counts as created.
+     *
+     * @return false if a component exists and is not a directory.
+     */
 
-                    if (!found) {
-                        client.mkdir(wdnew);
-                        dirmap.remove(wd);
-                    }
+    public boolean mkdirs()
+            throws IOException {
+        ArrayList<String> missing = new ArrayList<String>();
+        Path dir = new Path(currentPath.getPath());
 
-                    wd = wdnew;
-                }
+        while (dir.getPath().length() > 0 && !dir.getPath().equals("/")) {
+            String path = dir.getPath();
+
+            if (makeDir(path) || isDir(path))
+                break;
+
+            missing.add(path);
+            dir.parent();
+        }
+
+        for (int i = missing.size() - 1; i >= 0; --i) {
+            String path = missing.get(i);
+
+            if (!makeDir(path) && !isDir(path)) {
+                FTPFile file = getFtpFile(new Path(path));
+
+                if (file != null && !file.isDir() && !file.isLink())
+                    return false;
+
+                throw new IOException(getBase() + path + ": can't create directory");
             }
-        } catch (FTPException ex) {
-            throw new IOException(ex.getMessage());
         }
 
         return true;
@@ -339,6 +425,58 @@ public class FtpFile
 
     //----------------------------------------------------------------------
 
+    /**
+     * Send MKD; return false if the server refuses it.
+     */
+
+    private boolean makeDir(final String path)
+            throws IOException {
+        boolean made = pool.call(new FtpPool.Task<Boolean>() {
+            public Boolean run(FTPClient ftp)
+                    throws IOException {
+                try {
+                    ftp.mkdir(path);
+                    return true;
+                } catch (FTPException ex) {
+                    return false;
+                }
+            }
+        });
+
+        if (made)
+            cache.changed(getBase(), path);
+
+        return made;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Tell whether a directory exists by changing into it, without a
+     * listing. The connection's working directory is restored.
+     */
+
+    private boolean isDir(final String path)
+            throws IOException {
+        return pool.call(new FtpPool.Task<Boolean>() {
+            public Boolean run(FTPClient ftp)
+                    throws IOException, FTPException {
+                String wd = ftp.pwd();
+
+                try {
+                    ftp.chdir(path);
+                } catch (FTPException ex) {
+                    return false;
+                }
+
+                ftp.chdir(wd);
+                return true;
+            }
+        });
+    }
+
+    //----------------------------------------------------------------------
+
     public EFile parentFile() {
         currentPath.parent();
         return this;
@@ -346,13 +484,50 @@ public class FtpFile
 
     //----------------------------------------------------------------------
 
-    public void putBytes(byte[] bytes)
+    public void putBytes(final byte[] bytes)
             throws IOException {
-        try {
-            client.put(bytes, currentPath.getPath());
-        } catch (FTPException ex) {
-            throw new IOException(ex.getMessage());
-        }
+        final String path = currentPath.getPath();
+
+        pool.call(new FtpPool.Task<Object>() {
+            public Object run(FTPClient ftp)
+                    throws IOException, FTPException {
+                ftp.put(bytes, path);
+                return null;
+            }
+        });
+
+        cache.changed(getBase(), path);
+    }
+
+    //----------------------------------------------------------------------
+
+    public int read(long position, ByteBuffer dst)
+            throws IOException {
+        return new FtpReader(currentPath.getPath()).read(position, dst);
+    }
+
+    //----------------------------------------------------------------------
+
+    public ByteBuffer[] readVectored(List<FileRange> ranges)
+            throws IOException {
+        return readVectored(ranges, VectoredRead.DEFAULT_GAP);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Read several ranges, each worker on a connection from the pool.
+     */
+
+    public ByteBuffer[] readVectored(List<FileRange> ranges, int maxGap)
+            throws IOException {
+        final String path = currentPath.getPath();
+
+        return VectoredRead.read(ranges, maxGap, VectoredRead.PARALLELISM, new VectoredRead.Factory() {
+            public PositionalReader open() {
+                return new FtpReader(path);
+            }
+        });
     }
 
     //----------------------------------------------------------------------
@@ -379,56 +554,108 @@ public class FtpFile
         return "ftp://" + user + "@" + server + getPath();
     }
 
-    //----------------------------------------------------------------------
     //----------------------------------------------------------------------
 
-    private void chdir(String path)
-            throws IOException, FTPException {
-        if (!path.equals(ftpdir))
-            client.chdir(ftpdir = path);
+    public Closeable watch(FileEventListener listener)
+            throws IOException {
+        return watch(listener, PollingWatch.DEFAULT_INTERVAL);
     }
 
     //----------------------------------------------------------------------
 
-    private FTPFile[] getChildren(String path)
-            throws IOException, FTPException {
-        FTPFile[] chn = dirmap.get(path);
+    /**
+     * Watch this directory, polling on connections from the pool, which the
+     * watch keeps open until it is closed.
+     *
+     * @param listener Receives the events.
+     * @param interval Polling interval in milliseconds.
+     */
 
-        if (chn == null)
-            try {
-                chn = client.dirDetails(path);
-                dirmap.put(path, chn);
-            } catch (java.text.ParseException ex) {
-                throw new IOException(ex.getMessage());
+    public Closeable watch(FileEventListener listener, long interval)
+            throws IOException {
+        final FtpPool watchPool = FtpPool.acquire(server, user, password);
+
+        return new PollingWatch(currentPath.getPath(), new PollingWatch.Lister() {
+            public FileEntry[] list(final String dir)
+                    throws IOException {
+                return watchPool.call(new FtpPool.Task<FileEntry[]>() {
+                    public FileEntry[] run(FTPClient ftp)
+                            throws IOException, FTPException, java.text.ParseException {
+                        return toEntries(ftp.dirDetails(dir));
+                    }
+                });
             }
 
-        return chn;
+            public void close() {
+                watchPool.release();
+            }
+        }, listener, interval).start();
     }
 
     //----------------------------------------------------------------------
 
-    private void deleteDir(String path)
+    /**
+     * Return the connection pool of this file's server, e.g. to set its
+     * limits.
+     */
+
+    public FtpPool getPool() {
+        return pool;
+    }
+
+    //----------------------------------------------------------------------
+    //----------------------------------------------------------------------
+
+    /**
+     * Return the listing of a directory, null if the server refuses to
+     * list it, e.g. because it does not exist.
+     */
+
+    private FTPFile[] getChildren(final String path)
             throws IOException {
+        Object cached = cache.get(MetadataCache.LIST, getBase(), path);
+
+        if (cached == MetadataCache.ABSENT)
+            return null;
+
+        if (cached != null)
+            return (FTPFile[]) cached;
+
+        FTPFile[] chn;
+
         try {
-            FTPFile[] children = getChildren(path);
-            String parent = path + "/";
+            chn = pool.call(new FtpPool.Task<FTPFile[]>() {
+                public FTPFile[] run(FTPClient ftp)
+                        throws IOException, FTPException, java.text.ParseException {
+                    return ftp.dirDetails(path);
+                }
+            });
+        } catch (IOException ex) {
+            if (!(ex.getCause() instanceof FTPException))
+                throw ex;
 
-            for (int i = 0; i < children.length; ++i) {
-                FTPFile child = children[i];
-                String childpath = parent + child.getName();
+            chn = null;
+        }
 
-                if (child.isDir())
-                    deleteDir(childpath);
-                else
-                    client.delete(childpath);
-            }
+        cache.put(MetadataCache.LIST, getBase(), path, chn, chn != null ? 1 + chn.length : 1);
+        return chn;
+    }
+
+    //----------------------------------------------------------------------
 
-            chdir("/");
-            client.delete(path);
-        } catch (FTPException ex) {
-            throw new IOException(ex);
+    static FileEntry[] toEntries(FTPFile[] children) {
+        FileEntry[] entries = new FileEntry[children.length];
+
+        for (int i = 0; i < children.length; ++i) {
+            FTPFile child = children[i];
+            FileEntry.Type type = child.isDir() ? FileEntry.Type.DIRECTORY
+                    : child.isLink() ? FileEntry.Type.LINK : FileEntry.Type.FILE;
+
+            entries[i] = new FileEntry(child.getName(), type, child.size(),
+                    child.lastModified() != null ? child.lastModified().getTime() : 0);
         }
 
+        return entries;
     }
 
     //----------------------------------------------------------------------
@@ -449,17 +676,44 @@ public class FtpFile
 
     //----------------------------------------------------------------------
 
-    private FTPFile getFtpFile()
-            throws FTPException, IOException, java.text.ParseException {
-        FTPFile[] children = dirmap.get(currentPath.getParentPath());
+    /**
+     * Return a file, null if it does not exist. Cached metadata answers if
+     * there is any; otherwise MLST, or SIZE and MDTM for plain files, ask
+     * for this one file, and only if the server has neither is the whole
+     * parent directory listed.
+     */
+
+    private FTPFile getFtpFile(Path file)
+            throws IOException {
+        String path = file.getPath(),
+                parent = file.getParentPath();
+        Object cached = cache.get(MetadataCache.STAT, getBase(), path);
+
+        if (cached == null)
+            cached = cache.get(MetadataCache.LIST, getBase(), parent);
+        else if (cached == MetadataCache.ABSENT)
+            return null;
+        else
+            return (FTPFile) cached;
+
+        if (cached == null) {
+            Object found = stat(path, file.getName());
+
+            if (found != null) {
+                cache.put(MetadataCache.STAT, getBase(), path, found != MetadataCache.ABSENT ? found : null, 1);
+                return found != MetadataCache.ABSENT ? (FTPFile) found : null;
+            }
+        }
+
+        FTPFile[] children = getChildren(parent);
 
         if (children == null)
-            dirmap.put(currentPath.getParentPath(), children = client.dirDetails(currentPath.getParentPath()));
+            return null;
 
         for (int i = 0; i < children.length; ++i) {
             FTPFile child = children[i];
 
-            if (child.getName().equals(currentPath.getName()))
+            if (child.getName().equals(file.getName()))
                 return child;
         }
 
@@ -467,57 +721,276 @@ public class FtpFile
     }
 
     //----------------------------------------------------------------------
+
+    /**
+     * Ask the server for a single file.
+     *
+     * @return The file, MetadataCache.ABSENT if it does not exist, null if
+     * the server cannot tell without a listing.
+     */
+
+    private Object stat(final String path, final String name)
+            throws IOException {
+        if (pool.hasFeature("MLST")) {
+            FTPReply reply = pool.call(new FtpPool.Task<FTPReply>() {
+                public FTPReply run(FTPClient ftp)
+                        throws IOException {
+                    return ftp.sendCommand("MLST " + path);
+                }
+            });
+
+            if (reply.getReplyCode().startsWith("55"))
+                return MetadataCache.ABSENT;
+
+            if (reply.getReplyCode().equals("250")) {
+                String[] data = reply.getReplyData();
+                FTPFile file = parseFacts(reply.getReplyText(), name);
+
+                for (int i = 0; file == null && data != null && i < data.length; ++i)
+                    file = parseFacts(data[i], name);
+
+                if (file != null)
+                    return file;
+            }
+        }
+
+        if (!pool.hasFeature("SIZE"))
+            return null;
+
+        final boolean mdtm = pool.hasFeature("MDTM");
+
+        // SIZE fails for directories as well as for missing files
+
+        return pool.call(new FtpPool.Task<FTPFile>() {
+            public FTPFile run(FTPClient ftp)
+                    throws IOException {
+                long size;
+                Date date = null;
+
+                try {
+                    size = ftp.size(path);
+                } catch (FTPException ex) {
+                    return null;
+                }
+
+                if (mdtm)
+                    try {
+                        date = ftp.modtime(path);
+                    } catch (FTPException ex) {
+                    }
+
+                return new FTPFile("", name, size, false, date);
+            }
+        });
+    }
+
     //----------------------------------------------------------------------
 
-    class FtpInputStream
-            extends PipedInputStream {
-        private Thread thread;
+    /**
+     * Parse an MLST reply line: facts like "type=file;size=12;" and the
+     * path, separated by a space.
+     *
+     * @return The file, null if the line holds no facts.
+     */
+
+    static FTPFile parseFacts(String line, String name) {
+        if (line == null)
+            return null;
+
+        if (line.startsWith(" "))
+            line = line.substring(1);
+
+        int k = line.indexOf(' ');
+
+        if (k <= 0 || line.charAt(k - 1) != ';')
+            return null;
+
+        String[] facts = line.substring(0, k).split(";");
+        String type = null;
+        long size = 0;
+        Date date = null;
+
+        for (int i = 0; i < facts.length; ++i) {
+            int eq = facts[i].indexOf('=');
+
+            if (eq <= 0)
+                continue;
+
+            String fact = facts[i].substring(0, eq).toLowerCase(Locale.ROOT),
+                    value = facts[i].substring(eq + 1);
+
+            if (fact.equals("type"))
+                type = value.toLowerCase(Locale.ROOT);
+            else if (fact.equals("size"))
+                try {
+                    size = Long.parseLong(value);
+                } catch (NumberFormatException ex) {
+                }
+            else if (fact.equals("modify")) {
+                SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
+
+                format.setTimeZone(TimeZone.getTimeZone("UTC"));
+                date = format.parse(value, new ParsePosition(0));
+            }
+        }
+
+        if (type == null)
+            return null;
+
+        return new FTPFile(line, name, size, type.equals("dir") || type.equals("cdir"), date);
+    }
+
+    //----------------------------------------------------------------------
+    //----------------------------------------------------------------------
+
+    /**
+     * Ranged reads: each read borrows a connection, restarts the download
+     * at its position (REST) and closes the data connection when the buffer
+     * is full.
+     */
+
+    class FtpReader
+            implements PositionalReader {
+        private String path;
+        private long size;
+
+        //----------------------------------------------------------------------
+
+        FtpReader(String path) {
+            this.path = path;
+            size = -1;
+        }
+
+        //----------------------------------------------------------------------
+
+        public void close() {
+        }
 
         //----------------------------------------------------------------------
 
-        FtpInputStream(PipedOutputStream pout, Thread thread)
+        public int read(final long position, final ByteBuffer dst)
                 throws IOException {
-            super(pout);
-            this.thread = thread;
+            if (!dst.hasRemaining())
+                return 0;
+
+            if (position >= size())
+                return -1;
+
+            int count = pool.call(new FtpPool.Task<Integer>() {
+                public Integer run(FTPClient ftp)
+                        throws IOException, FTPException {
+                    ftp.resumeNextDownload(position);
+
+                    InputStream in = new FTPInputStream(ftp, path);
+
+                    try {
+                        byte[] buf = new byte[Math.min(dst.remaining(), LocalFile.BUFSIZE)];
+                        int total = 0, n;
+
+                        while (dst.hasRemaining() && (n = in.read(buf, 0, Math.min(buf.length, dst.remaining()))) >= 0) {
+                            dst.put(buf, 0, n);
+                            total += n;
+                        }
+
+                        // End of data before the position: the file has shrunk
+
+                        return total > 0 ? total : -1;
+                    } finally {
+                        in.close();
+                    }
+                }
+            });
+
+            // Ask the server for the size again next time
+
+            if (count < 0)
+                size = -1;
+
+            return count;
         }
 
         //----------------------------------------------------------------------
 
-        public void close()
+        public long size()
                 throws IOException {
-            try {
-                thread.join();
-            } catch (InterruptedException ie) {
-            }
+            if (size < 0)
+                size = pool.call(new FtpPool.Task<Long>() {
+                    public Long run(FTPClient ftp)
+                            throws IOException, FTPException {
+                        return ftp.size(path);
+                    }
+                });
 
-            super.close();
+            return size;
         }
     }
 
     //----------------------------------------------------------------------
 
-    class FtpOutputStream
-            extends PipedOutputStream {
-        private Thread thread;
+    /**
+     * Delete operations, each on a connection from the pool.
+     */
+
+    class FtpDeleteOps
+            implements DeleteEngine.Ops {
+        // Reply to commands on a file that does not exist
+
+        private static final int FILE_UNAVAILABLE = 550;
+
+        public FileEntry[] list(final String dir)
+                throws IOException {
+            return pool.call(new FtpPool.Task<FileEntry[]>() {
+                public FileEntry[] run(FTPClient ftp)
+                        throws IOException, FTPException, java.text.ParseException {
+                    try {
+                        return toEntries(ftp.dirDetails(dir));
+                    } catch (FTPException ex) {
+                        if (ex.getReplyCode() != FILE_UNAVAILABLE)
+                            throw ex;
+
+                        return null;
+                    }
+                }
+            });
+        }
 
         //----------------------------------------------------------------------
 
-        FtpOutputStream(PipedInputStream pin, Thread thread)
+        // Files deleted meanwhile by someone else count as deleted
+
+        public void deleteFile(final String path)
                 throws IOException {
-            super(pin);
-            this.thread = thread;
+            pool.call(new FtpPool.Task<Object>() {
+                public Object run(FTPClient ftp)
+                        throws IOException, FTPException {
+                    try {
+                        ftp.delete(path);
+                    } catch (FTPException ex) {
+                        if (ex.getReplyCode() != FILE_UNAVAILABLE)
+                            throw ex;
+                    }
+
+                    return null;
+                }
+            });
         }
 
         //----------------------------------------------------------------------
 
-        public void close()
+        public void deleteDir(final String path)
                 throws IOException {
-            super.close();
+            pool.call(new FtpPool.Task<Object>() {
+                public Object run(FTPClient ftp)
+                        throws IOException, FTPException {
+                    ftp.rmdir(path);
+                    return null;
+                }
+            });
+        }
 
-            try {
-                thread.join();
-            } catch (InterruptedException ie) {
-            }
+        //----------------------------------------------------------------------
+
+        public void close() {
         }
     }
 
@@ -0,0 +1,123 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+import com.enterprisedt.net.ftp.FTPClient;
+import com.enterprisedt.net.ftp.FTPException;
+import com.enterprisedt.net.ftp.FTPInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Download read straight from the data connection of a borrowed pool
+ * connection, through a buffer of fixed size. The connection is returned
+ * on close, or closed if the transfer failed.
+ */
+
+class FtpInputStream
+        extends InputStream {
+    private FtpPool pool;
+    private FTPClient ftp;
+    private InputStream in;
+    private boolean failed;
+
+    //----------------------------------------------------------------------
+
+    FtpInputStream(FtpPool pool, String path)
+            throws IOException {
+        this.pool = pool;
+        ftp = pool.borrow();
+
+        try {
+            in = new BufferedInputStream(new FTPInputStream(ftp, path), FtpFile.BUFSIZE);
+        } catch (FTPException ex) {
+            pool.release(ftp);
+            throw new IOException(path + ": " + ex.getMessage(), ex);
+        } catch (IOException ex) {
+            pool.discard(ftp);
+            throw ex;
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    public int available()
+            throws IOException {
+        return in.available();
+    }
+
+    //----------------------------------------------------------------------
+
+    public void close()
+            throws IOException {
+        if (ftp == null)
+            return;
+
+        try {
+            in.close();
+        } catch (IOException ex) {
+            failed = true;
+            throw ex;
+        } finally {
+            if (failed)
+                pool.discard(ftp);
+            else
+                pool.release(ftp);
+
+            ftp = null;
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    public int read()
+            throws IOException {
+        try {
+            return in.read();
+        } catch (IOException ex) {
+            failed = true;
+            throw ex;
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    public int read(byte[] b, int off, int len)
+            throws IOException {
+        try {
+            return in.read(b, off, len);
+        } catch (IOException ex) {
+            failed = true;
+            throw ex;
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    public long skip(long n)
+            throws IOException {
+        try {
+            return in.skip(n);
+        } catch (IOException ex) {
+            failed = true;
+            throw ex;
+        }
+    }
+}
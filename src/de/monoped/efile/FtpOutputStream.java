@@ -1,33 +1,117 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
 package de.monoped.efile;
 
 import com.enterprisedt.net.ftp.FTPClient;
 import com.enterprisedt.net.ftp.FTPException;
+import com.enterprisedt.net.ftp.FTPOutputStream;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Upload written straight to the data connection of a borrowed pool
+ * connection, through a buffer of fixed size. close() completes the
+ * transfer and reports its failure; the connection is then returned, or
+ * closed if the transfer failed.
+ */
 
 class FtpOutputStream
-        extends ByteArrayOutputStream {
+        extends OutputStream {
+    private FtpPool pool;
     private FTPClient ftp;
-    private String path;
+    private OutputStream out;
+    private boolean failed;
 
     //----------------------------------------------------------------------
 
-    FtpOutputStream(FTPClient ftp, String path) {
-        this.ftp = ftp;
-        this.path = path;
+    FtpOutputStream(FtpPool pool, String path)
+            throws IOException {
+        this.pool = pool;
+        ftp = pool.borrow();
+
+        try {
+            out = new BufferedOutputStream(new FTPOutputStream(ftp, path), FtpFile.BUFSIZE);
+        } catch (FTPException ex) {
+            pool.release(ftp);
+            throw new IOException(path + ": " + ex.getMessage(), ex);
+        } catch (IOException ex) {
+            pool.discard(ftp);
+            throw ex;
+        }
     }
 
     //----------------------------------------------------------------------
 
     public void close()
             throws IOException {
+        if (ftp == null)
+            return;
+
         try {
-            ftp.put(toByteArray(), path);
-        } catch (FTPException ex) {
-            throw new IOException(ex.getMessage());
+            out.close();
+        } catch (IOException ex) {
+            failed = true;
+            throw ex;
+        } finally {
+            if (failed)
+                pool.discard(ftp);
+            else
+                pool.release(ftp);
+
+            ftp = null;
         }
     }
 
-}
+    //----------------------------------------------------------------------
 
+    public void flush()
+            throws IOException {
+        try {
+            out.flush();
+        } catch (IOException ex) {
+            failed = true;
+            throw ex;
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    public void write(int b)
+            throws IOException {
+        try {
+            out.write(b);
+        } catch (IOException ex) {
+            failed = true;
+            throw ex;
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    public void write(byte[] b, int off, int len)
+            throws IOException {
+        try {
+            out.write(b, off, len);
+        } catch (IOException ex) {
+            failed = true;
+            throw ex;
+        }
+    }
+}
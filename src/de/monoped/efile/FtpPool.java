@@ -0,0 +1,538 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+import com.enterprisedt.net.ftp.FTPClient;
+import com.enterprisedt.net.ftp.FTPException;
+import com.enterprisedt.net.ftp.FTPTransferType;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Pool of logged-in connections to one FTP server and user, shared by all
+ * FtpFiles of that server. Operations borrow a connection and return it,
+ * so files can transfer concurrently on connections of their own.
+ *
+ * Up to max connections are open at a time; a borrower waits for a free
+ * one up to the borrow timeout. A connection idle for longer than the
+ * check interval is probed with NOOP before it is handed out, and broken
+ * ones are replaced. Idle connections beyond min are closed after the
+ * idle timeout. The pool closes when the last FtpFile using it is closed.
+ */
+
+public class FtpPool {
+    private static final HashMap<String, FtpPool> pools = new HashMap<String, FtpPool>();
+    private static Timer timer;
+
+    private String key, server, user, password;
+    private ArrayDeque<Idle> idle;
+    private int min, max, open, refs;
+    private long idleTimeout, checkInterval, borrowTimeout;
+    private long created, evicted, broken;
+    private TimerTask evictor;
+    private boolean closed;
+    private volatile HashSet<String> features;
+
+    //----------------------------------------------------------------------
+
+    private FtpPool(String key, String server, String user, String password) {
+        this.key = key;
+        this.server = server;
+        this.user = user;
+        this.password = password;
+        idle = new ArrayDeque<Idle>();
+        min = 0;
+        max = 8;
+        idleTimeout = 60000;
+        checkInterval = 10000;
+        borrowTimeout = 60000;
+        schedule();
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return the pool of a server and user, creating it if needed; the
+     * caller must release it.
+     */
+
+    static FtpPool acquire(String server, String user, String password) {
+        synchronized (pools) {
+            String k = user + "@" + server;
+            FtpPool pool = pools.get(k);
+
+            if (pool == null || !password.equals(pool.password)) {
+                pool = new FtpPool(k, server, user, password);
+
+                if (!pools.containsKey(k))
+                    pools.put(k, pool);
+            }
+
+            synchronized (pool) {
+                ++pool.refs;
+            }
+
+            return pool;
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Release a reference; the last one closes the pool.
+     */
+
+    void release() {
+        synchronized (pools) {
+            synchronized (this) {
+                if (--refs > 0)
+                    return;
+            }
+
+            if (pools.get(key) == this)
+                pools.remove(key);
+        }
+
+        close();
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Borrow a connection, opening a new one if none is idle and the limit
+     * has not been reached.
+     */
+
+    FTPClient borrow()
+            throws IOException {
+        long deadline = System.currentTimeMillis() + borrowTimeout;
+
+        while (true) {
+            Idle conn = null;
+
+            synchronized (this) {
+                while (!closed && idle.isEmpty() && open >= max) {
+                    long wait = deadline - System.currentTimeMillis();
+
+                    if (wait <= 0)
+                        throw new IOException(user + "@" + server + ": no FTP connection available");
+
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException ex) {
+                        throw new IOException(ex);
+                    }
+                }
+
+                if (closed)
+                    throw new IOException(user + "@" + server + ": connection pool closed");
+
+                if (!idle.isEmpty())
+                    conn = idle.pollLast();
+                else
+                    ++open;
+            }
+
+            if (conn == null)
+                return connect();
+
+            if (System.currentTimeMillis() - conn.since < checkInterval || check(conn.client))
+                return conn.client;
+
+            synchronized (this) {
+                ++broken;
+            }
+
+            discard(conn.client);
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Run a task on a borrowed connection. A connection that failed with an
+     * I/O error is closed; one whose command the server refused is
+     * returned.
+     */
+
+    <T> T call(Task<T> task)
+            throws IOException {
+        FTPClient ftp = borrow();
+        boolean reuse = false;
+
+        try {
+            T result = task.run(ftp);
+
+            reuse = true;
+            return result;
+        } catch (FTPException ex) {
+            reuse = true;
+            throw new IOException(ex.getMessage(), ex);
+        } catch (ParseException ex) {
+            reuse = true;
+            throw new IOException(ex.getMessage(), ex);
+        } finally {
+            // Anything else, including errors, may have broken the connection
+
+            if (reuse)
+                release(ftp);
+            else
+                discard(ftp);
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return a connection for reuse.
+     */
+
+    void release(FTPClient client) {
+        synchronized (this) {
+            if (!closed) {
+                idle.addLast(new Idle(client));
+                notify();
+                return;
+            }
+
+            --open;
+        }
+
+        quit(client);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Close a connection that failed instead of returning it.
+     */
+
+    void discard(FTPClient client) {
+        synchronized (this) {
+            --open;
+            notify();
+        }
+
+        quit(client);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Tell whether the server announces a feature, e.g. MLST or SIZE, in
+     * its FEAT reply. FEAT is sent once per pool.
+     */
+
+    boolean hasFeature(String name)
+            throws IOException {
+        HashSet<String> feats = features;
+
+        if (feats == null) {
+            String[] lines;
+
+            try {
+                lines = call(new Task<String[]>() {
+                    public String[] run(FTPClient ftp)
+                            throws IOException, FTPException {
+                        return ftp.features();
+                    }
+                });
+            } catch (IOException ex) {
+                if (!(ex.getCause() instanceof FTPException))
+                    throw ex;
+
+                // Server without FEAT
+
+                lines = null;
+            }
+
+            feats = new HashSet<String>();
+
+            if (lines != null)
+                for (int i = 0; i < lines.length; ++i) {
+                    String line = lines[i].trim();
+                    int k = line.indexOf(' ');
+
+                    if (line.length() > 0)
+                        feats.add((k > 0 ? line.substring(0, k) : line).toUpperCase(Locale.ROOT));
+                }
+
+            features = feats;
+        }
+
+        return feats.contains(name);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Close all idle connections; connections in use are closed when
+     * returned. Only called by release, once the pool has left the map of
+     * shared pools.
+     */
+
+    void close() {
+        ArrayDeque<Idle> conns;
+
+        synchronized (this) {
+            closed = true;
+            conns = idle;
+            idle = new ArrayDeque<Idle>();
+            open -= conns.size();
+            notifyAll();
+
+            if (evictor != null)
+                evictor.cancel();
+        }
+
+        for (Iterator<Idle> it = conns.iterator(); it.hasNext(); )
+            quit(it.next().client);
+    }
+
+    //----------------------------------------------------------------------
+
+    public synchronized long getBroken() {
+        return broken;
+    }
+
+    //----------------------------------------------------------------------
+
+    public synchronized long getCreated() {
+        return created;
+    }
+
+    //----------------------------------------------------------------------
+
+    public synchronized long getEvicted() {
+        return evicted;
+    }
+
+    //----------------------------------------------------------------------
+
+    public synchronized int getIdle() {
+        return idle.size();
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return the number of open connections, idle or in use.
+     */
+
+    public synchronized int getOpen() {
+        return open;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Set how long a borrower waits for a free connection.
+     */
+
+    public synchronized void setBorrowTimeout(long millis) {
+        borrowTimeout = millis;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Set how long a connection may be idle before it is probed when
+     * borrowed.
+     */
+
+    public synchronized void setCheckInterval(long millis) {
+        checkInterval = millis;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Set how long connections beyond the minimum are kept idle.
+     */
+
+    public synchronized void setIdleTimeout(long millis) {
+        idleTimeout = millis;
+        schedule();
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Set the number of idle connections kept open and the number of
+     * connections open at a time.
+     */
+
+    public synchronized void setLimits(int min, int max) {
+        if (min < 0 || max < 1 || min > max)
+            throw new IllegalArgumentException(min + ", " + max);
+
+        this.min = min;
+        this.max = max;
+        notifyAll();
+    }
+
+    //----------------------------------------------------------------------
+
+    public synchronized String toString() {
+        return "FtpPool " + key + ": " + open + " open, " + idle.size() + " idle, " + created + " created, "
+                + evicted + " evicted, " + broken + " broken";
+    }
+
+    //----------------------------------------------------------------------
+
+    private boolean check(FTPClient client) {
+        try {
+            if (!client.connected())
+                return false;
+
+            client.noOperation();
+            return true;
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    private FTPClient connect()
+            throws IOException {
+        FTPClient ftp = new FTPClient();
+
+        try {
+            ftp.setRemoteHost(server);
+            ftp.connect();
+            ftp.user(user);
+            ftp.password(password);
+            ftp.setType(FTPTransferType.BINARY);
+        } catch (FTPException ex) {
+            discard(ftp);
+            throw new IOException(ex);
+        } catch (IOException ex) {
+            discard(ftp);
+            throw ex;
+        }
+
+        synchronized (this) {
+            ++created;
+        }
+
+        return ftp;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Close connections beyond the minimum that have been idle too long,
+     * oldest first.
+     */
+
+    private void evict() {
+        ArrayDeque<Idle> expired = new ArrayDeque<Idle>();
+
+        synchronized (this) {
+            long limit = System.currentTimeMillis() - idleTimeout;
+
+            while (idle.size() > min && idle.peekFirst().since < limit) {
+                expired.add(idle.pollFirst());
+                --open;
+                ++evicted;
+            }
+
+            if (!expired.isEmpty())
+                notifyAll();
+        }
+
+        for (Iterator<Idle> it = expired.iterator(); it.hasNext(); )
+            quit(it.next().client);
+    }
+
+    //----------------------------------------------------------------------
+
+    private static void quit(FTPClient client) {
+        try {
+            client.quit();
+        } catch (Exception ex) {
+            try {
+                client.quitImmediately();
+            } catch (Exception ex2) {
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Run the evictor at half the idle timeout on the shared timer.
+     */
+
+    private synchronized void schedule() {
+        if (evictor != null)
+            evictor.cancel();
+
+        if (closed)
+            return;
+
+        evictor = new TimerTask() {
+            public void run() {
+                evict();
+            }
+        };
+
+        synchronized (FtpPool.class) {
+            if (timer == null)
+                timer = new Timer("efile-ftp-pool", true);
+
+            long period = Math.max(1000, idleTimeout / 2);
+
+            timer.schedule(evictor, period, period);
+        }
+    }
+
+    //----------------------------------------------------------------------
+    //----------------------------------------------------------------------
+
+    /**
+     * Operation on a borrowed connection.
+     */
+
+    interface Task<T> {
+        T run(FTPClient ftp) throws IOException, FTPException, ParseException;
+    }
+
+    //----------------------------------------------------------------------
+
+    static class Idle {
+        FTPClient client;
+        long since;
+
+        //----------------------------------------------------------------------
+
+        Idle(FTPClient client) {
+            this.client = client;
+            since = System.currentTimeMillis();
+        }
+    }
+}
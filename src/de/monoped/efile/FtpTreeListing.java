@@ -0,0 +1,428 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+import com.enterprisedt.net.ftp.FTPClient;
+import com.enterprisedt.net.ftp.FTPException;
+import com.enterprisedt.net.ftp.FTPFile;
+import com.enterprisedt.net.ftp.FTPFileFactory;
+import com.enterprisedt.net.ftp.FTPReply;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Recursive listing of an FTP directory tree. The server is first asked
+ * for the whole tree at once, with STAT -R on the control connection and
+ * then LIST -R; the output is split into its directory sections, which
+ * are parsed one by one. Directories missing from the output, all of them
+ * if the server does not recurse, are listed by fork/join tasks on pooled
+ * connections. Every listing goes into the MetadataCache.
+ */
+
+class FtpTreeListing {
+    private FtpPool pool;
+    private MetadataCache cache;
+    private String base, root;
+    private FTPFileFactory parser;
+    private ConcurrentHashMap<String, FTPFile[]> dirs;
+    private AtomicReference<Throwable> failure;
+
+    //----------------------------------------------------------------------
+
+    private FtpTreeListing(FtpPool pool, String base, String root) {
+        this.pool = pool;
+        this.base = base;
+        this.root = root;
+        cache = MetadataCache.getInstance();
+        dirs = new ConcurrentHashMap<String, FTPFile[]>();
+        failure = new AtomicReference<Throwable>();
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * List a directory tree.
+     *
+     * @param base        Base of the files, the key of the cache.
+     * @param root        Normalized path of the top directory.
+     * @param parallelism Number of workers for directories the server did
+     *                    not list recursively.
+     * @return Entries of each directory, by path; directories that cannot
+     * be listed are left out.
+     */
+
+    static Map<String, FileEntry[]> list(FtpPool pool, String base, String root, int parallelism)
+            throws IOException {
+        FtpTreeListing listing = new FtpTreeListing(pool, base, root);
+
+        listing.listRecursive();
+
+        ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+
+        if (!listing.dirs.containsKey(root))
+            tasks.add(listing.new DirTask(root));
+        else
+            for (Iterator<Map.Entry<String, FTPFile[]>> it = listing.dirs.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, FTPFile[]> e = it.next();
+
+                listing.addMissing(e.getKey(), e.getValue(), tasks);
+            }
+
+        if (tasks.size() > 0) {
+            ForkJoinPool workers = new ForkJoinPool(parallelism);
+
+            try {
+                workers.invoke(new Tasks(tasks));
+            } finally {
+                workers.shutdown();
+            }
+        }
+
+        Throwable ex = listing.failure.get();
+
+        if (ex instanceof IOException)
+            throw (IOException) ex;
+
+        if (ex instanceof RuntimeException)
+            throw (RuntimeException) ex;
+
+        if (ex instanceof Error)
+            throw (Error) ex;
+
+        TreeMap<String, FileEntry[]> result = new TreeMap<String, FileEntry[]>();
+
+        for (Iterator<Map.Entry<String, FTPFile[]>> it = listing.dirs.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, FTPFile[]> e = it.next();
+
+            result.put(e.getKey(), FtpFile.toEntries(e.getValue()));
+        }
+
+        return result;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Add tasks for the subdirectories of a listing that have no listing.
+     * Links are not followed.
+     */
+
+    private void addMissing(String dir, FTPFile[] children, ArrayList<RecursiveAction> tasks) {
+        String prefix = dir.endsWith("/") ? dir : dir + "/";
+
+        for (int i = 0; i < children.length; ++i) {
+            FTPFile child = children[i];
+
+            if (child.isDir() && !child.isLink() && !dirs.containsKey(prefix + child.getName()))
+                tasks.add(new DirTask(prefix + child.getName()));
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Ask for the whole tree: STAT -R needs no data connection, LIST -R is
+     * tried if that leaves directories out.
+     */
+
+    private void listRecursive()
+            throws IOException {
+        final String[][] lines = new String[2][];
+
+        try {
+            pool.call(new FtpPool.Task<Object>() {
+                public Object run(FTPClient ftp)
+                        throws IOException, FTPException {
+                    parser = new FTPFileFactory(ftp.system());
+
+                    FTPReply reply = ftp.sendCommand("STAT -R " + root);
+
+                    if (reply.getReplyCode().startsWith("21"))
+                        lines[0] = reply.getReplyData();
+
+                    return null;
+                }
+            });
+        } catch (IOException ex) {
+            if (!(ex.getCause() instanceof FTPException))
+                throw ex;
+
+            return;
+        }
+
+        if (lines[0] != null && parse(lines[0], true) && complete())
+            return;
+
+        try {
+            lines[1] = pool.call(new FtpPool.Task<String[]>() {
+                public String[] run(FTPClient ftp)
+                        throws IOException, FTPException {
+                    return ftp.dir("-R " + root, true);
+                }
+            });
+        } catch (IOException ex) {
+            if (!(ex.getCause() instanceof FTPException))
+                throw ex;
+
+            return;
+        }
+
+        if (lines[1] != null)
+            parse(lines[1], false);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Tell whether every listed subdirectory has a listing.
+     */
+
+    private boolean complete() {
+        ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+
+        for (Iterator<Map.Entry<String, FTPFile[]>> it = dirs.entrySet().iterator(); it.hasNext() && tasks.isEmpty(); ) {
+            Map.Entry<String, FTPFile[]> e = it.next();
+
+            addMissing(e.getKey(), e.getValue(), tasks);
+        }
+
+        return tasks.isEmpty();
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Parse recursive ls output: sections of listing lines, each but the
+     * first headed by "path:" after an empty line. The first header names
+     * the listed directory itself. Sections whose directory is not listed
+     * in its parent's section are ignored.
+     *
+     * @param reply True for the lines of a control connection reply,
+     *              which may carry reply codes or a leading space.
+     * @return True if any section was parsed.
+     */
+
+    private boolean parse(String[] lines, boolean reply) {
+        HashMap<String, FTPFile[]> found = new HashMap<String, FTPFile[]>();
+        ArrayList<String> section = new ArrayList<String>();
+        String dir = root;
+        boolean open = false,
+                blank = true;
+
+        for (int i = 0; i <= lines.length; ++i) {
+            String line = i < lines.length ? lines[i] : null;
+
+            if (line != null && reply) {
+                if (line.length() >= 4 && Character.isDigit(line.charAt(0)) && Character.isDigit(line.charAt(1))
+                        && Character.isDigit(line.charAt(2)) && (line.charAt(3) == '-' || line.charAt(3) == ' ')) {
+                    if (line.charAt(3) == ' ')
+                        continue;
+
+                    line = line.substring(4);
+                } else if (line.startsWith(" "))
+                    line = line.substring(1);
+            }
+
+            boolean header = line != null && blank && line.endsWith(":") && line.length() > 1;
+
+            if (line == null || header) {
+                if (dir != null && (open || section.size() > 0))
+                    add(found, dir, section);
+
+                if (header)
+                    dir = open || section.size() > 0 ? resolve(line.substring(0, line.length() - 1)) : root;
+
+                open = header;
+                section.clear();
+            } else if (line.trim().length() > 0 && !line.startsWith("total "))
+                section.add(line);
+
+            blank = line == null || line.trim().length() == 0;
+        }
+
+        // Keep what is reachable from the top
+
+        ArrayList<String> queue = new ArrayList<String>();
+
+        if (found.containsKey(root))
+            queue.add(root);
+
+        for (int k = 0; k < queue.size(); ++k) {
+            String path = queue.get(k),
+                    prefix = path.endsWith("/") ? path : path + "/";
+            FTPFile[] children = found.get(path);
+
+            put(path, children);
+
+            for (int i = 0; i < children.length; ++i) {
+                String child = prefix + children[i].getName();
+
+                if (children[i].isDir() && !children[i].isLink() && found.containsKey(child))
+                    queue.add(child);
+            }
+        }
+
+        return queue.size() > 0;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Parse a section; one that is not a listing, such as a message, is
+     * left out.
+     */
+
+    private void add(HashMap<String, FTPFile[]> found, String dir, ArrayList<String> section) {
+        FTPFile[] files;
+
+        try {
+            files = parser.parse(section.toArray(new String[section.size()]));
+        } catch (ParseException ex) {
+            return;
+        }
+
+        ArrayList<FTPFile> children = new ArrayList<FTPFile>(files.length);
+
+        for (int i = 0; i < files.length; ++i)
+            if (files[i] != null && !files[i].getName().equals(".") && !files[i].getName().equals(".."))
+                children.add(files[i]);
+
+        found.put(dir, children.toArray(new FTPFile[children.size()]));
+    }
+
+    //----------------------------------------------------------------------
+
+    private void put(String dir, FTPFile[] children) {
+        dirs.put(dir, children);
+        cache.put(MetadataCache.LIST, base, dir, children, 1 + children.length);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return the path of a section header, null if it is outside the tree.
+     * Servers write headers as absolute paths, relative to the listed
+     * directory ("./sub") or relative to the working directory.
+     */
+
+    private String resolve(String header) {
+        String path;
+
+        if (header.startsWith("/"))
+            path = Path.normalizePath(header);
+        else if (root.length() > 1 && (header + "/").startsWith(root.substring(1) + "/"))
+            path = Path.normalizePath(header);
+        else
+            path = Path.normalizePath(root + "/" + header);
+
+        return path.equals(root) || path.startsWith(root.equals("/") ? root : root + "/") ? path : null;
+    }
+
+    //----------------------------------------------------------------------
+    //----------------------------------------------------------------------
+
+    static class Tasks
+            extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private ArrayList<RecursiveAction> tasks;
+
+        //----------------------------------------------------------------------
+
+        Tasks(ArrayList<RecursiveAction> tasks) {
+            this.tasks = tasks;
+        }
+
+        //----------------------------------------------------------------------
+
+        protected void compute() {
+            invokeAll(tasks);
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    class DirTask
+            extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private String path;
+
+        //----------------------------------------------------------------------
+
+        DirTask(String path) {
+            this.path = path;
+        }
+
+        //----------------------------------------------------------------------
+
+        protected void compute() {
+            if (failure.get() != null || dirs.containsKey(path))
+                return;
+
+            try {
+                Object cached = cache.get(MetadataCache.LIST, base, path);
+                FTPFile[] children;
+
+                if (cached instanceof FTPFile[])
+                    children = (FTPFile[]) cached;
+                else if (cached == MetadataCache.ABSENT)
+                    return;
+                else
+                    try {
+                        children = pool.call(new FtpPool.Task<FTPFile[]>() {
+                            public FTPFile[] run(FTPClient ftp)
+                                    throws IOException, FTPException, ParseException {
+                                return ftp.dirDetails(path);
+                            }
+                        });
+                    } catch (IOException ex) {
+                        if (!(ex.getCause() instanceof FTPException))
+                            throw ex;
+
+                        // Not listable, e.g. no permission
+
+                        cache.put(MetadataCache.LIST, base, path, null, 1);
+                        return;
+                    }
+
+                if (children == null)
+                    return;
+
+                put(path, children);
+
+                ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+
+                addMissing(path, children, tasks);
+                invokeAll(tasks);
+            } catch (Throwable ex) {
+                failure.compareAndSet(null, ex);
+            }
+        }
+    }
+}
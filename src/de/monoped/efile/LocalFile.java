@@ -18,11 +18,29 @@
 package de.monoped.efile;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 public class LocalFile
         implements EFile {
+    static final int BUFSIZE = 64 * 1024;
+
+    // transferTo is capped per call on some platforms (2 GB on Linux).
+
+    private static final long MAX_TRANSFER = 1L << 30;
+
     private Path curpath;
 
     //----------------------------------------------------------------------
@@ -53,15 +71,26 @@ public class LocalFile
 
     public void copyFrom(InputStream in)
             throws IOException {
-        OutputStream out = getOutputStream();
-        byte[] buf = new byte[4096];
-        int n;
+        FileOutputStream out = null;
 
-        while ((n = in.read(buf)) >= 0)
-            out.write(buf, 0, n);
+        try {
+            out = new FileOutputStream(curpath.getPath());
 
-        in.close();
-        out.close();
+            if (in instanceof FileInputStream)
+                transfer(((FileInputStream) in).getChannel(), out.getChannel());
+            else {
+                byte[] buf = new byte[BUFSIZE];
+                int n;
+
+                while ((n = in.read(buf)) >= 0)
+                    out.write(buf, 0, n);
+            }
+        } finally {
+            in.close();
+
+            if (out != null)
+                out.close();
+        }
     }
 
     //----------------------------------------------------------------------
@@ -72,34 +101,24 @@ public class LocalFile
 
     //----------------------------------------------------------------------
 
-    public void delete(boolean recursive) {
-        File file = new File(curpath.getPath());
-
-        if (!recursive || !file.isDirectory())
-            file.delete();
-        else
-            deleteDir(file);
+    public void delete(boolean recursive)
+            throws IOException {
+        delete(recursive, null);
     }
 
     //----------------------------------------------------------------------
 
-    private boolean deleteDir(File dir) {
-        File[] files = dir.listFiles();
+    public void delete(boolean recursive, ProgressListener listener)
+            throws IOException {
+        File file = new File(curpath.getPath());
 
-        if (files != null) {
-            for (int i = 0; i < files.length; ++i) {
-                File f = files[i];
+        // A link to a directory is deleted itself, not the tree it points to
 
-                if (f.isDirectory()) {
-                    if (!deleteDir(f))
-                        return false;
-                } else if (!f.delete())
-                    return false;
-            }
-        }
-
-        dir.delete();
-        return true;
+        if (!recursive || !Files.isDirectory(file.toPath(), LinkOption.NOFOLLOW_LINKS))
+            file.delete();
+        else
+            DeleteEngine.delete(curpath.getPath(), new LocalDeleteOps(),
+                    Runtime.getRuntime().availableProcessors(), listener);
     }
 
     //----------------------------------------------------------------------
@@ -118,16 +137,78 @@ public class LocalFile
 
     public byte[] getBytes()
             throws IOException {
-        InputStream in = getInputStream();
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        byte[] buf = new byte[2048];
-        int n;
+        FileInputStream in = new FileInputStream(curpath.getPath());
+
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(curpath.getPath() + ": file too large");
+
+            // Read straight into an array of the final size; if the file
+            // grows meanwhile, the rest is picked up by the stream loop.
+
+            byte[] bytes = new byte[(int) size];
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+
+            while (buf.hasRemaining())
+                if (channel.read(buf) < 0)
+                    break;
+
+            if (buf.hasRemaining()) {
+                byte[] part = new byte[buf.position()];
+
+                System.arraycopy(bytes, 0, part, 0, part.length);
+                return part;
+            }
+
+            int b = in.read();
+
+            if (b < 0)
+                return bytes;
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length + BUFSIZE);
+            byte[] tmp = new byte[BUFSIZE];
+            int n;
+
+            out.write(bytes);
+            out.write(b);
+
+            while ((n = in.read(tmp)) >= 0)
+                out.write(tmp, 0, n);
+
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    public ByteBuffer getByteBuffer()
+            throws IOException {
+        FileChannel channel = new FileInputStream(curpath.getPath()).getChannel();
+
+        try {
+            long size = channel.size();
 
-        while ((n = in.read(buf)) >= 0)
-            out.write(buf, 0, n);
+            // A buffer holds at most 2 GB
 
-        in.close();
-        return out.toByteArray();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(curpath.getPath() + ": too large for a buffer (" + size + " bytes)");
+
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            channel.close();
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    public SeekableByteChannel getChannel()
+            throws IOException {
+        return new FileInputStream(curpath.getPath()).getChannel();
     }
 
     //----------------------------------------------------------------------
@@ -164,12 +245,59 @@ public class LocalFile
 
     //----------------------------------------------------------------------
 
+    /**
+     * Open the file for writing, presized to the expected length so the
+     * file system can allocate it in one piece. The file is cut to the
+     * number of bytes actually written on close.
+     */
+
+    OutputStream getOutputStream(long size)
+            throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(curpath.getPath(), "rw");
+
+        try {
+            file.setLength(size);
+        } catch (IOException ex) {
+            file.close();
+            throw ex;
+        }
+
+        return new BufferedOutputStream(new OutputStream() {
+            public void write(int b)
+                    throws IOException {
+                file.write(b);
+            }
+
+            public void write(byte[] b, int off, int len)
+                    throws IOException {
+                file.write(b, off, len);
+            }
+
+            public void close()
+                    throws IOException {
+                try {
+                    file.setLength(file.getFilePointer());
+                } finally {
+                    file.close();
+                }
+            }
+        }, BUFSIZE);
+    }
+
+    //----------------------------------------------------------------------
+
     public boolean isDirectory() {
         return new File(curpath.getPath()).isDirectory();
     }
 
     //----------------------------------------------------------------------
 
+    public long length() {
+        return new File(curpath.getPath()).length();
+    }
+
+    //----------------------------------------------------------------------
+
     public String[] list() {
         return new File(curpath.getPath()).list();
     }
@@ -182,14 +310,121 @@ public class LocalFile
 
     //----------------------------------------------------------------------
 
-    public Iterator<EFile> iterator() {
-        return new LocalFileIterator(new File(curpath.getPath()).list());
+    public FileEntry[] listEntries()
+            throws IOException {
+        return listEntries(Paths.get(curpath.getPath()));
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * List a directory; null if it does not exist or is not a directory.
+     * Children that vanish while the directory is listed are left out.
+     */
+
+    static FileEntry[] listEntries(java.nio.file.Path dir)
+            throws IOException {
+        ArrayList<FileEntry> entries = new ArrayList<FileEntry>();
+        DirectoryStream<java.nio.file.Path> stream;
+
+        try {
+            stream = Files.newDirectoryStream(dir);
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (NotDirectoryException ex) {
+            return null;
+        }
+
+        try {
+            for (java.nio.file.Path p : stream)
+                try {
+                    entries.add(toEntry(p));
+                } catch (NoSuchFileException ex) {
+                }
+        } finally {
+            stream.close();
+        }
+
+        return entries.toArray(new FileEntry[entries.size()]);
+    }
+
+    //----------------------------------------------------------------------
+
+    static FileEntry toEntry(java.nio.file.Path p)
+            throws IOException {
+        BasicFileAttributes attr = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        FileEntry.Type type;
+
+        if (attr.isDirectory())
+            type = FileEntry.Type.DIRECTORY;
+        else if (attr.isSymbolicLink())
+            type = FileEntry.Type.LINK;
+        else if (attr.isRegularFile())
+            type = FileEntry.Type.FILE;
+        else
+            type = FileEntry.Type.OTHER;
+
+        return new FileEntry(p.getFileName().toString(), type, attr.size(), attr.lastModifiedTime().toMillis());
+    }
+
+    //----------------------------------------------------------------------
+
+    public LocalFileIterator iterator()
+            throws IOException {
+        return iterator((String) null);
+    }
+
+    //----------------------------------------------------------------------
+
+    public LocalFileIterator iterator(final FilenameFilter filter)
+            throws IOException {
+        final File dir = new File(curpath.getPath());
+
+        if (filter == null)
+            return openIterator(null, null);
+
+        return openIterator(new DirectoryStream.Filter<java.nio.file.Path>() {
+            public boolean accept(java.nio.file.Path entry) {
+                return filter.accept(dir, entry.getFileName().toString());
+            }
+        }, null);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return an iterator for the files in this directory whose names match
+     * a glob pattern (syntax of FileSystem.getPathMatcher). The directory
+     * is read while iterating, so memory use does not depend on its size.
+     * Close the iterator when stopping before the end.
+     *
+     * @param glob Glob pattern, null for all files.
+     */
+
+    public LocalFileIterator iterator(String glob)
+            throws IOException {
+        return openIterator(null, glob);
     }
 
     //----------------------------------------------------------------------
 
-    public Iterator<EFile>  iterator(FilenameFilter filter) {
-        return new LocalFileIterator(new File(curpath.getPath()).list(filter));
+    private LocalFileIterator openIterator(DirectoryStream.Filter<java.nio.file.Path> filter, String glob)
+            throws IOException {
+        java.nio.file.Path dir = Paths.get(curpath.getPath());
+
+        try {
+            if (filter != null)
+                return new LocalFileIterator(Files.newDirectoryStream(dir, filter));
+
+            if (glob != null)
+                return new LocalFileIterator(Files.newDirectoryStream(dir, glob));
+
+            return new LocalFileIterator(Files.newDirectoryStream(dir));
+        } catch (NoSuchFileException ex) {
+            return new LocalFileIterator(null);
+        } catch (NotDirectoryException ex) {
+            return new LocalFileIterator(null);
+        }
     }
 
     //----------------------------------------------------------------------
@@ -214,6 +449,45 @@ public class LocalFile
 
     //----------------------------------------------------------------------
 
+    public int read(long position, ByteBuffer dst)
+            throws IOException {
+        FileChannel channel = new FileInputStream(curpath.getPath()).getChannel();
+
+        try {
+            return channel.read(dst, position);
+        } finally {
+            channel.close();
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    public ByteBuffer[] readVectored(List<FileRange> ranges)
+            throws IOException {
+        return readVectored(ranges, VectoredRead.DEFAULT_GAP);
+    }
+
+    //----------------------------------------------------------------------
+
+    public ByteBuffer[] readVectored(List<FileRange> ranges, int maxGap)
+            throws IOException {
+        final FileChannel channel = new FileInputStream(curpath.getPath()).getChannel();
+
+        try {
+            final long size = channel.size();
+
+            return VectoredRead.read(ranges, maxGap, VectoredRead.PARALLELISM, new VectoredRead.Factory() {
+                public PositionalReader open() {
+                    return new ChannelReader(channel, 0, size, false);
+                }
+            });
+        } finally {
+            channel.close();
+        }
+    }
+
+    //----------------------------------------------------------------------
+
     public void setName(String name) {
         curpath.setName(name);
     }
@@ -231,35 +505,131 @@ public class LocalFile
     }
 
     //----------------------------------------------------------------------
+
+    public Closeable watch(FileEventListener listener)
+            throws IOException {
+        return new LocalWatch(curpath.getPath(), listener);
+    }
+
     //----------------------------------------------------------------------
 
-    class LocalFileIterator
-            implements Iterator {
-        private int i;
-        private String[] list;
+    /**
+     * Copy a file channel into another one. transferTo lets the kernel move
+     * the data (sendfile/copy_file_range) without passing through the heap.
+     * It may transfer less than requested, so loop until the source size
+     * is reached.
+     */
+
+    static void transfer(FileChannel src, FileChannel dst)
+            throws IOException {
+        long size = src.size(),
+                pos = src.position();
+
+        while (pos < size) {
+            long n = src.transferTo(pos, Math.min(size - pos, MAX_TRANSFER), dst);
+
+            if (n <= 0)
+                break;
+
+            pos += n;
+        }
+
+        src.position(pos);
+    }
+
+    //----------------------------------------------------------------------
+    //----------------------------------------------------------------------
+
+    static class LocalDeleteOps
+            implements DeleteEngine.Ops {
+        public FileEntry[] list(String dir)
+                throws IOException {
+            // Links are not followed, so they are deleted like files
+
+            return listEntries(Paths.get(dir));
+        }
 
         //----------------------------------------------------------------------
 
-        LocalFileIterator(String[] list) {
-            i = 0;
-            this.list = list;
+        // Files deleted meanwhile by someone else count as deleted
+
+        public void deleteFile(String path)
+                throws IOException {
+            Files.deleteIfExists(Paths.get(path));
+        }
+
+        //----------------------------------------------------------------------
+
+        public void deleteDir(String path)
+                throws IOException {
+            Files.deleteIfExists(Paths.get(path));
+        }
+
+        //----------------------------------------------------------------------
+
+        public void close() {
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Iterator over a directory stream. The stream is closed when the
+     * iterator is exhausted or closed.
+     */
+
+    public class LocalFileIterator
+            implements Iterator<EFile>, Closeable {
+        private DirectoryStream<java.nio.file.Path> stream;
+        private Iterator<java.nio.file.Path> it;
+
+        //----------------------------------------------------------------------
+
+        LocalFileIterator(DirectoryStream<java.nio.file.Path> stream) {
+            this.stream = stream;
+
+            if (stream != null)
+                it = stream.iterator();
+        }
+
+        //----------------------------------------------------------------------
+
+        public void close()
+                throws IOException {
+            if (stream != null) {
+                stream.close();
+                stream = null;
+                it = null;
+            }
         }
 
         //----------------------------------------------------------------------
 
         public boolean hasNext() {
-            return list != null && i < list.length;
+            if (it == null)
+                return false;
+
+            if (it.hasNext())
+                return true;
+
+            try {
+                close();
+            } catch (IOException ex) {
+            }
+
+            return false;
         }
 
         //----------------------------------------------------------------------
 
-        public Object next()
+        public EFile next()
                 throws NoSuchElementException {
-            if (list == null || i >= list.length)
-                throw new NoSuchElementException(String.valueOf(i));
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            String dir = curpath.getPath();
 
-            setName(list[i++]);
-            return this;
+            return new LocalFile((dir.endsWith("/") ? dir : dir + "/") + it.next().getFileName());
         }
 
         //----------------------------------------------------------------------
@@ -0,0 +1,122 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * Directory watch for local files, fed by the platform's WatchService.
+ */
+
+class LocalWatch
+        implements Closeable, Runnable {
+    private java.nio.file.Path dir;
+    private FileEventListener listener;
+    private WatchService service;
+    private Thread thread;
+
+    //----------------------------------------------------------------------
+
+    LocalWatch(String dir, FileEventListener listener)
+            throws IOException {
+        this.dir = Paths.get(dir);
+        this.listener = listener;
+        service = FileSystems.getDefault().newWatchService();
+
+        try {
+            this.dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException ex) {
+            service.close();
+            throw ex;
+        }
+
+        thread = new Thread(this, "efile-watch " + dir);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    //----------------------------------------------------------------------
+
+    public void close()
+            throws IOException {
+        service.close();
+    }
+
+    //----------------------------------------------------------------------
+
+    public void run() {
+        try {
+            for (; ; ) {
+                WatchKey key = service.take();
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    WatchEvent.Kind<?> kind = event.kind();
+
+                    // Events lost on overflow are not recoverable from the
+                    // service; the listener has to rescan if it cares.
+
+                    if (kind == StandardWatchEventKinds.OVERFLOW) {
+                        listener.watchFailed(new IOException(dir + ": too many changes, events lost"));
+                        continue;
+                    }
+
+                    java.nio.file.Path child = dir.resolve((java.nio.file.Path) event.context());
+                    FileEvent.Kind fileKind;
+                    FileEntry entry = null;
+
+                    if (kind == StandardWatchEventKinds.ENTRY_CREATE)
+                        fileKind = FileEvent.Kind.CREATED;
+                    else if (kind == StandardWatchEventKinds.ENTRY_MODIFY)
+                        fileKind = FileEvent.Kind.MODIFIED;
+                    else
+                        fileKind = FileEvent.Kind.DELETED;
+
+                    if (fileKind != FileEvent.Kind.DELETED)
+                        try {
+                            entry = LocalFile.toEntry(child);
+                        } catch (IOException ex) {
+                            // gone again
+                        }
+
+                    listener.fileChanged(new FileEvent(fileKind, child.toString(), entry));
+                }
+
+                if (!key.reset()) {
+                    listener.watchFailed(new IOException(dir + ": no longer accessible"));
+                    break;
+                }
+            }
+        } catch (ClosedWatchServiceException ex) {
+        } catch (InterruptedException ex) {
+        } finally {
+            try {
+                service.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of remote file metadata, shared by FtpFile and
+ * SshFile: directory listings and file attributes, keyed by file base and
+ * path. Entries expire after a time to live, so that changes by other
+ * clients are seen; lookups of missing files are cached as well, for a
+ * shorter time. The least recently used entries are evicted when the
+ * total weight, one per entry plus one per listed child, exceeds the
+ * limit. The backends invalidate what their own writes change.
+ */
+
+public class MetadataCache {
+    static final String LIST = "L",
+            STAT = "S";
+
+    // Cached result of a lookup that found nothing
+
+    static final Object ABSENT = new Object();
+
+    private static final MetadataCache instance = new MetadataCache();
+
+    private LinkedHashMap<String, Entry> entries;
+    private long maxWeight, ttl, negativeTtl, weight;
+    private long hits, misses, evictions, expirations;
+
+    //----------------------------------------------------------------------
+
+    MetadataCache() {
+        entries = new LinkedHashMap<String, Entry>(256, 0.75f, true);
+        maxWeight = 100000;
+        ttl = 30000;
+        negativeTtl = 5000;
+    }
+
+    //----------------------------------------------------------------------
+
+    public static MetadataCache getInstance() {
+        return instance;
+    }
+
+    //----------------------------------------------------------------------
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return a cached value, ABSENT for a cached failed lookup, null if
+     * nothing valid is cached.
+     *
+     * @param kind LIST or STAT.
+     */
+
+    synchronized Object get(String kind, String base, String path) {
+        String key = kind + base + path;
+        Entry e = entries.get(key);
+
+        if (e == null) {
+            ++misses;
+            return null;
+        }
+
+        if (System.currentTimeMillis() >= e.expires) {
+            entries.remove(key);
+            weight -= e.weight;
+            ++expirations;
+            ++misses;
+            return null;
+        }
+
+        ++hits;
+        return e.value;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Remove the entries of a path that was written, and the listing of its
+     * parent.
+     */
+
+    synchronized void changed(String base, String path) {
+        int i = path.lastIndexOf('/');
+
+        invalidate(base, path);
+
+        // Top level entries are listed both as "" (Path) and "/" (mkdirs)
+
+        if (i > 0)
+            invalidate(base, path.substring(0, i));
+        else {
+            invalidate(base, "");
+            invalidate(base, "/");
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    //----------------------------------------------------------------------
+
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+
+    //----------------------------------------------------------------------
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    //----------------------------------------------------------------------
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return the total weight of the cached entries.
+     */
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Remove the entries of a path.
+     */
+
+    synchronized void invalidate(String base, String path) {
+        remove(LIST + base + path);
+        remove(STAT + base + path);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Remove the entries of a path and everything below it.
+     */
+
+    synchronized void invalidateTree(String base, String path) {
+        String prefix = base + (path.endsWith("/") ? path : path + "/");
+
+        invalidate(base, path);
+
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Entry> e = it.next();
+
+            if (e.getKey().startsWith(prefix, 1)) {
+                weight -= e.getValue().weight;
+                it.remove();
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Cache a value.
+     *
+     * @param value  Value, null for a failed lookup.
+     * @param weight Cost of the value, e.g. 1 + number of listed children.
+     */
+
+    synchronized void put(String kind, String base, String path, Object value, int weight) {
+        String key = kind + base + path;
+        long now = System.currentTimeMillis();
+        Entry e = new Entry(value != null ? value : ABSENT, weight,
+                now + (value != null ? ttl : negativeTtl));
+
+        remove(key);
+
+        if (weight > maxWeight)
+            return;
+
+        entries.put(key, e);
+        this.weight += weight;
+        trim();
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Set the limit for the total weight of the cached entries.
+     */
+
+    public synchronized void setLimit(long maxWeight) {
+        this.maxWeight = maxWeight;
+        trim();
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Set how long values and failed lookups stay valid; 0 disables
+     * caching them.
+     */
+
+    public synchronized void setTtl(long ttl, long negativeTtl) {
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+    }
+
+    //----------------------------------------------------------------------
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    //----------------------------------------------------------------------
+
+    public synchronized String toString() {
+        return "MetadataCache: " + entries.size() + " entries, weight " + weight + ", " + hits + " hits, "
+                + misses + " misses, " + evictions + " evictions, " + expirations + " expirations";
+    }
+
+    //----------------------------------------------------------------------
+
+    private void remove(String key) {
+        Entry e = entries.remove(key);
+
+        if (e != null)
+            weight -= e.weight;
+    }
+
+    //----------------------------------------------------------------------
+
+    private void trim() {
+        Iterator<Entry> it = entries.values().iterator();
+
+        while (weight > maxWeight && it.hasNext()) {
+            weight -= it.next().weight;
+            it.remove();
+            ++evictions;
+        }
+    }
+
+    //----------------------------------------------------------------------
+    //----------------------------------------------------------------------
+
+    static class Entry {
+        Object value;
+        int weight;
+        long expires;
+
+        //----------------------------------------------------------------------
+
+        Entry(Object value, int weight, long expires) {
+            this.value = value;
+            this.weight = weight;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+import java.io.IOException;
+
+/**
+ * Archive read through a reader over its bytes instead of a local file:
+ * one stored inside another archive, or one on a remote file system. It
+ * has an entry tree of its own, is shared by the files opened in it and
+ * is closed when the last of them is closed. An archive nested in a
+ * stored entry of another such archive reads through its parent's reader
+ * and keeps the parent open.
+ */
+
+class NestedArchive {
+    String name;
+    PositionalReader reader;
+    ZipNode root;
+    private NestedArchive parent;
+    private int refs;
+
+    //----------------------------------------------------------------------
+
+    /**
+     * @param name   Name of the archive, e.g. outer.jar!/lib/inner.jar.
+     * @param parent Archive whose reader the reader reads from, null if
+     *               the reader is independent.
+     */
+
+    NestedArchive(String name, PositionalReader reader, ZipIndex index, NestedArchive parent) {
+        this.name = name;
+        this.reader = reader;
+        this.parent = parent;
+        root = new ZipNode(index, 0, null);
+        refs = 1;
+
+        if (parent != null)
+            parent.retain();
+    }
+
+    //----------------------------------------------------------------------
+
+    void release() {
+        synchronized (this) {
+            if (--refs > 0)
+                return;
+        }
+
+        try {
+            reader.close();
+        } catch (IOException ex) {
+        }
+
+        if (parent != null)
+            parent.release();
+    }
+
+    //----------------------------------------------------------------------
+
+    synchronized void retain() {
+        ++refs;
+    }
+}
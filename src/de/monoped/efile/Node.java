@@ -18,43 +18,35 @@
 package de.monoped.efile;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 
+/**
+ * Node of an archive tree. Children are provided by subclasses; a plain
+ * node has none.
+ */
+
 public class Node {
     Node parent;
     String name;
-    ArrayList<Node> children;
 
     //----------------------------------------------------------------------
 
     Node(Node parent, String name) {
         this.name = name;
         this.parent = parent;
-        children = new ArrayList<Node>();
     }
 
     //----------------------------------------------------------------------
 
-    Node addChild(Node child) {
-        children.add(child);
-        return child;
+    Node getChild(String name) {
+        return null;
     }
 
     //----------------------------------------------------------------------
 
-    Node getChild(String name) {
-        for (Iterator<Node> it = children.iterator(); it.hasNext(); ) {
-            Node child = it.next();
-            String childName = child.getName();
-
-            if (childName.endsWith("/"))
-                childName = childName.substring(0, childName.length() - 1);
-
-            if (childName.equals(name))
-                return child;
-        }
-
-        return null;
+    int getChildCount() {
+        return 0;
     }
 
     //----------------------------------------------------------------------
@@ -69,13 +61,24 @@ public class Node {
         if (parent == null)
             return "/";
 
-        String s = name;
-        Node node = this;
+        // Collect names from here up and append them top down
+
+        ArrayList<String> names = new ArrayList<String>();
+        int len = 0;
+
+        for (Node node = this; node.getParent() != null; node = node.getParent()) {
+            String s = node.getName();
 
-        while ((node = node.getParent()) != null)
-            s = node.getName() + "/" + s;
+            names.add(s);
+            len += s.length() + 1;
+        }
+
+        StringBuilder s = new StringBuilder(len);
 
-        return s;
+        for (int i = names.size() - 1; i >= 0; --i)
+            s.append('/').append(names.get(i));
+
+        return s.toString();
     }
 
     //----------------------------------------------------------------------
@@ -87,19 +90,19 @@ public class Node {
     //----------------------------------------------------------------------
 
     boolean isDirectory() {
-        return children.size() > 0;
+        return getChildCount() > 0;
     }
 
     //----------------------------------------------------------------------
 
     public Iterator iterator() {
-        return children.iterator();
+        return Collections.<Node>emptyList().iterator();
     }
 
     //----------------------------------------------------------------------
 
     public String toString() {
-        return name;
+        return getName();
     }
 
     //----------------------------------------------------------------------
@@ -108,7 +111,7 @@ public class Node {
         s.append(getPath()).append("\n");
 
         if (isDirectory())
-            for (Iterator<Node> it = children.iterator(); it.hasNext(); )
+            for (Iterator<Node> it = iterator(); it.hasNext(); )
                 it.next().treeToString(s);
     }
 }
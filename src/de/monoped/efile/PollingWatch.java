@@ -0,0 +1,198 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Directory watch for backends without change notification. The directory
+ * is listed at a fixed interval and each listing is compared with the
+ * previous one, which is kept as sorted arrays of names and attributes.
+ */
+
+class PollingWatch
+        implements Closeable, Runnable {
+    static final long DEFAULT_INTERVAL = 5000;
+
+    private static final Comparator<FileEntry> BY_NAME = new Comparator<FileEntry>() {
+        public int compare(FileEntry a, FileEntry b) {
+            return a.getName().compareTo(b.getName());
+        }
+    };
+
+    private String dir;
+    private Lister lister;
+    private FileEventListener listener;
+    private long interval;
+    private Thread thread;
+    private volatile boolean closed;
+
+    // Last snapshot
+
+    private String[] names;
+    private long[] sizes, times;
+    private byte[] types;
+
+    //----------------------------------------------------------------------
+
+    PollingWatch(String dir, Lister lister, FileEventListener listener, long interval) {
+        this.dir = dir.endsWith("/") ? dir : dir + "/";
+        this.lister = lister;
+        this.listener = listener;
+        this.interval = interval;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Take the first snapshot and start polling.
+     */
+
+    PollingWatch start()
+            throws IOException {
+        try {
+            snapshot(lister.list(dir));
+        } catch (IOException ex) {
+            lister.close();
+            throw ex;
+        }
+
+        thread = new Thread(this, "efile-watch " + dir);
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    //----------------------------------------------------------------------
+
+    public void close() {
+        closed = true;
+
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    //----------------------------------------------------------------------
+
+    public void run() {
+        try {
+            while (!closed) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+
+                try {
+                    FileEntry[] entries = lister.list(dir);
+
+                    if (!closed)
+                        diff(entries);
+                } catch (IOException ex) {
+                    if (!closed)
+                        listener.watchFailed(ex);
+                }
+            }
+        } finally {
+            lister.close();
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Compare a new listing with the last snapshot, report the differences
+     * and make the listing the new snapshot.
+     */
+
+    private void diff(FileEntry[] entries) {
+        String[] oldNames = names;
+        long[] oldSizes = sizes, oldTimes = times;
+        byte[] oldTypes = types;
+
+        snapshot(entries);
+
+        int i = 0, j = 0;
+
+        while (i < oldNames.length || j < names.length) {
+            int cmp = i == oldNames.length ? 1 : j == names.length ? -1 : oldNames[i].compareTo(names[j]);
+
+            if (cmp < 0) {
+                fire(FileEvent.Kind.DELETED, new FileEntry(oldNames[i], FileEntry.Type.values()[oldTypes[i]],
+                        oldSizes[i], oldTimes[i]));
+                ++i;
+            } else if (cmp > 0) {
+                fire(FileEvent.Kind.CREATED, entries[j]);
+                ++j;
+            } else {
+                if (oldSizes[i] != sizes[j] || oldTimes[i] != times[j] || oldTypes[i] != types[j])
+                    fire(FileEvent.Kind.MODIFIED, entries[j]);
+
+                ++i;
+                ++j;
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    private void fire(FileEvent.Kind kind, FileEntry entry) {
+        listener.fileChanged(new FileEvent(kind, dir + entry.getName(), entry));
+    }
+
+    //----------------------------------------------------------------------
+
+    private void snapshot(FileEntry[] entries) {
+        if (entries == null)
+            entries = new FileEntry[0];
+
+        Arrays.sort(entries, BY_NAME);
+
+        int n = entries.length;
+
+        names = new String[n];
+        sizes = new long[n];
+        times = new long[n];
+        types = new byte[n];
+
+        for (int i = 0; i < n; ++i) {
+            FileEntry e = entries[i];
+
+            names[i] = e.getName();
+            sizes[i] = e.getSize();
+            times[i] = e.getLastModified();
+            types[i] = (byte) e.getType().ordinal();
+        }
+    }
+
+    //----------------------------------------------------------------------
+    //----------------------------------------------------------------------
+
+    /**
+     * Listing source, used only by the watch thread.
+     */
+
+    interface Lister {
+        FileEntry[] list(String dir) throws IOException;
+
+        void close();
+    }
+}
@@ -0,0 +1,40 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Source of random access reads, implemented by the backends.
+ */
+
+interface PositionalReader
+        extends Closeable {
+    /**
+     * Read bytes starting at a file position into a buffer. May read fewer
+     * bytes than the buffer has room for.
+     *
+     * @return Number of bytes read, -1 at end of file.
+     */
+
+    int read(long position, ByteBuffer dst) throws IOException;
+
+    long size() throws IOException;
+}
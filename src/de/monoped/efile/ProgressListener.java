@@ -0,0 +1,34 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+/**
+ * Receives progress reports from long running operations. Reports may come
+ * from several threads at once.
+ */
+
+public interface ProgressListener {
+    /**
+     * Called after a file has been processed.
+     *
+     * @param path  Path of the file just processed.
+     * @param count Number of files processed so far.
+     */
+
+    void progress(String path, long count);
+}
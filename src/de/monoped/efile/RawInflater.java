@@ -0,0 +1,510 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * Inflater for raw deflate data that can stop and resume at block
+ * boundaries. java.util.zip.Inflater neither reports where blocks start
+ * nor can it start inside a byte, so checkpoints for seeking, as in zlib's
+ * zran example, need an inflater of their own: a checkpoint is the bit
+ * position of a block, its uncompressed position and the 32 KB window
+ * preceding it.
+ */
+
+class RawInflater {
+    static final int WSIZE = 32768;
+
+    private static final int WMASK = WSIZE - 1,
+            HEADER = 0,
+            STORED = 1,
+            CODES = 2,
+            DONE = 3;
+
+    private static final int[] LEN_BASE = {3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+            35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258},
+            LEN_EXTRA = {0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0},
+            DIST_BASE = {1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769,
+                    1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577},
+            DIST_EXTRA = {0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11,
+                    12, 12, 13, 13},
+            CL_ORDER = {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+
+    private static final Table FIXED_LIT, FIXED_DIST;
+
+    static {
+        byte[] lens = new byte[288];
+
+        Arrays.fill(lens, 0, 144, (byte) 8);
+        Arrays.fill(lens, 144, 256, (byte) 9);
+        Arrays.fill(lens, 256, 280, (byte) 7);
+        Arrays.fill(lens, 280, 288, (byte) 8);
+        FIXED_LIT = new Table();
+        FIXED_DIST = new Table();
+
+        try {
+            FIXED_LIT.build(lens, 0, 288);
+            Arrays.fill(lens, 0, 32, (byte) 5);
+            FIXED_DIST.build(lens, 0, 32);
+        } catch (ZipException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private PositionalReader in;
+    private byte[] inBuf;
+    private int inPos, inLen, padding;
+    private long inStart, bitBuf;
+    private int bitCnt;
+    private byte[] window;
+    private int wpos;
+    private long out;
+    private int state, storedLeft, copyLen, copyDist;
+    private boolean last;
+    private Table lit, dist, dynLit, dynDist, codeLens;
+    private byte[] lens;
+    private long spacing, lastCheckpoint;
+    private List<SeekIndex.Checkpoint> checkpoints;
+
+    //----------------------------------------------------------------------
+
+    /**
+     * @param in    Compressed data.
+     * @param start Checkpoint to start at, null for the start of the data.
+     */
+
+    RawInflater(PositionalReader in, SeekIndex.Checkpoint start)
+            throws IOException {
+        this.in = in;
+        inBuf = new byte[LocalFile.BUFSIZE];
+        window = new byte[WSIZE];
+        dynLit = new Table();
+        dynDist = new Table();
+        codeLens = new Table();
+        lens = new byte[320];
+        state = HEADER;
+
+        if (start != null) {
+            System.arraycopy(start.window, 0, window, 0, start.window.length);
+            wpos = start.window.length & WMASK;
+            out = start.out;
+            inStart = start.bit >>> 3;
+
+            int skip = (int) (start.bit & 7);
+
+            need(skip);
+            drop(skip);
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Record a checkpoint at the first block boundary after every spacing
+     * bytes of output.
+     */
+
+    void setCheckpoints(long spacing, List<SeekIndex.Checkpoint> checkpoints) {
+        this.spacing = spacing;
+        this.checkpoints = checkpoints;
+        lastCheckpoint = out;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return the uncompressed position.
+     */
+
+    long getPosition() {
+        return out;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Inflate into an array.
+     *
+     * @return Number of bytes inflated, -1 at the end of the data.
+     */
+
+    int read(byte[] b, int off, int len)
+            throws IOException {
+        int n = 0;
+
+        while (n < len) {
+            if (copyLen > 0) {
+                int k = Math.min(copyLen, len - n),
+                        src = (wpos - copyDist) & WMASK;
+
+                copyLen -= k;
+                out += k;
+
+                while (k-- > 0) {
+                    byte x = window[src];
+
+                    src = (src + 1) & WMASK;
+                    window[wpos] = x;
+                    wpos = (wpos + 1) & WMASK;
+                    b[off + n++] = x;
+                }
+            } else if (state == CODES) {
+                int sym = decode(lit);
+
+                if (sym < 256) {
+                    b[off + n++] = put((byte) sym);
+                } else if (sym == 256)
+                    state = HEADER;
+                else {
+                    sym -= 257;
+
+                    if (sym >= 29)
+                        throw new ZipException("Invalid length code");
+
+                    copyLen = LEN_BASE[sym] + bits(LEN_EXTRA[sym]);
+
+                    int d = decode(dist);
+
+                    if (d >= 30)
+                        throw new ZipException("Invalid distance code");
+
+                    copyDist = DIST_BASE[d] + bits(DIST_EXTRA[d]);
+
+                    if (copyDist > Math.min(out, WSIZE))
+                        throw new ZipException("Invalid distance too far back");
+                }
+            } else if (state == STORED) {
+                if (storedLeft == 0)
+                    state = HEADER;
+                else {
+                    b[off + n++] = put((byte) bits(8));
+                    --storedLeft;
+                }
+            } else if (state == HEADER) {
+                if (last)
+                    state = DONE;
+                else {
+                    if (checkpoints != null && out - lastCheckpoint >= spacing)
+                        checkpoint();
+
+                    header();
+                }
+            } else
+                break;
+        }
+
+        return n == 0 && len > 0 ? -1 : n;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Inflate into a buffer.
+     */
+
+    int read(ByteBuffer dst)
+            throws IOException {
+        if (dst.hasArray()) {
+            int n = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+
+            if (n > 0)
+                dst.position(dst.position() + n);
+
+            return n;
+        }
+
+        byte[] buf = new byte[Math.min(dst.remaining(), LocalFile.BUFSIZE)];
+        int n = read(buf, 0, buf.length);
+
+        if (n > 0)
+            dst.put(buf, 0, n);
+
+        return n;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Inflate and discard.
+     *
+     * @return Number of bytes skipped, less than n at the end of the data.
+     */
+
+    long skip(long n)
+            throws IOException {
+        byte[] buf = new byte[(int) Math.min(n, LocalFile.BUFSIZE)];
+        long total = 0;
+        int k;
+
+        while (total < n && (k = read(buf, 0, (int) Math.min(n - total, buf.length))) > 0)
+            total += k;
+
+        return total;
+    }
+
+    //----------------------------------------------------------------------
+
+    private void checkpoint() {
+        SeekIndex.Checkpoint cp = new SeekIndex.Checkpoint();
+        int len = (int) Math.min(out, WSIZE),
+                start = (wpos - len) & WMASK,
+                first = Math.min(len, WSIZE - start);
+
+        cp.out = out;
+        cp.bit = (inStart + inPos) * 8 - bitCnt;
+        cp.window = new byte[len];
+        System.arraycopy(window, start, cp.window, 0, first);
+        System.arraycopy(window, 0, cp.window, first, len - first);
+        checkpoints.add(cp);
+        lastCheckpoint = out;
+    }
+
+    //----------------------------------------------------------------------
+
+    private void header()
+            throws IOException {
+        last = bits(1) == 1;
+
+        switch (bits(2)) {
+            case 0:
+                drop(bitCnt & 7);
+
+                int len = bits(16);
+
+                if (len != (~bits(16) & 0xffff))
+                    throw new ZipException("Invalid stored block lengths");
+
+                storedLeft = len;
+                state = STORED;
+                break;
+
+            case 1:
+                lit = FIXED_LIT;
+                dist = FIXED_DIST;
+                state = CODES;
+                break;
+
+            case 2:
+                dynamic();
+                state = CODES;
+                break;
+
+            default:
+                throw new ZipException("Invalid block type");
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    private void dynamic()
+            throws IOException {
+        int nlit = bits(5) + 257,
+                ndist = bits(5) + 1,
+                ncode = bits(4) + 4,
+                total = nlit + ndist;
+
+        Arrays.fill(lens, 0, 19, (byte) 0);
+
+        for (int i = 0; i < ncode; ++i)
+            lens[CL_ORDER[i]] = (byte) bits(3);
+
+        codeLens.build(lens, 0, 19);
+
+        for (int i = 0; i < total; ) {
+            int sym = decode(codeLens);
+
+            if (sym < 16)
+                lens[i++] = (byte) sym;
+            else {
+                byte value = 0;
+                int repeat;
+
+                if (sym == 16) {
+                    if (i == 0)
+                        throw new ZipException("Invalid bit length repeat");
+
+                    value = lens[i - 1];
+                    repeat = 3 + bits(2);
+                } else if (sym == 17)
+                    repeat = 3 + bits(3);
+                else
+                    repeat = 11 + bits(7);
+
+                if (i + repeat > total)
+                    throw new ZipException("Invalid bit length repeat");
+
+                while (repeat-- > 0)
+                    lens[i++] = value;
+            }
+        }
+
+        if (lens[256] == 0)
+            throw new ZipException("Missing end-of-block code");
+
+        dynLit.build(lens, 0, nlit);
+        dynDist.build(lens, nlit, ndist);
+        lit = dynLit;
+        dist = dynDist;
+    }
+
+    //----------------------------------------------------------------------
+
+    private byte put(byte x) {
+        window[wpos] = x;
+        wpos = (wpos + 1) & WMASK;
+        ++out;
+        return x;
+    }
+
+    //----------------------------------------------------------------------
+
+    private int decode(Table table)
+            throws IOException {
+        need(table.bits);
+
+        int e = table.codes[(int) bitBuf & ((1 << table.bits) - 1)],
+                len = e & 15;
+
+        if (len == 0)
+            throw new ZipException("Invalid code");
+
+        drop(len);
+        return e >>> 4;
+    }
+
+    //----------------------------------------------------------------------
+
+    private int bits(int n)
+            throws IOException {
+        need(n);
+
+        int v = (int) bitBuf & ((1 << n) - 1);
+
+        drop(n);
+        return v;
+    }
+
+    //----------------------------------------------------------------------
+
+    private void drop(int n) {
+        bitBuf >>>= n;
+        bitCnt -= n;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Make sure there are n bits in the bit buffer. Codes are looked up with
+     * the longest code length, so a few zero bytes are supplied past the
+     * end of the data.
+     */
+
+    private void need(int n)
+            throws IOException {
+        while (bitCnt < n) {
+            if (inPos == inLen) {
+                inStart += inLen;
+                inPos = 0;
+                inLen = 0;
+
+                int k = in.read(inStart, ByteBuffer.wrap(inBuf));
+
+                if (k <= 0) {
+                    if (++padding > 4)
+                        throw new ZipException("Unexpected end of deflate data");
+
+                    bitCnt += 8;
+                    continue;
+                }
+
+                inLen = k;
+            }
+
+            bitBuf |= (long) (inBuf[inPos++] & 0xff) << bitCnt;
+            bitCnt += 8;
+        }
+    }
+
+    //----------------------------------------------------------------------
+    //----------------------------------------------------------------------
+
+    /**
+     * Huffman code as a table indexed by the next bits of input, holding
+     * symbol and code length.
+     */
+
+    static class Table {
+        int[] codes = new int[1 << 9];
+        int bits;
+
+        //----------------------------------------------------------------------
+
+        void build(byte[] lens, int off, int n)
+                throws ZipException {
+            int[] count = new int[16],
+                    next = new int[16];
+
+            for (int i = 0; i < n; ++i)
+                ++count[lens[off + i]];
+
+            count[0] = 0;
+            bits = 1;
+
+            int left = 1;
+
+            for (int len = 1; len < 16; ++len) {
+                left = (left << 1) - count[len];
+
+                if (left < 0)
+                    throw new ZipException("Invalid Huffman code");
+
+                if (count[len] > 0)
+                    bits = len;
+            }
+
+            for (int len = 1, code = 0; len < 16; ++len) {
+                code = (code + count[len - 1]) << 1;
+                next[len] = code;
+            }
+
+            // Incomplete codes leave zero entries, rejected by decode
+
+            if (codes.length < 1 << bits)
+                codes = new int[1 << bits];
+            else
+                Arrays.fill(codes, 0, 1 << bits, 0);
+
+            for (int sym = 0; sym < n; ++sym) {
+                int len = lens[off + sym];
+
+                if (len > 0) {
+                    int code = next[len]++,
+                            rev = Integer.reverse(code) >>> (32 - len);
+
+                    for (int i = rev; i < 1 << bits; i += 1 << len)
+                        codes[i] = sym << 4 | len;
+                }
+            }
+        }
+    }
+}
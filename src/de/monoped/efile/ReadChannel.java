@@ -0,0 +1,121 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Read-only seekable channel on top of a positional reader.
+ */
+
+class ReadChannel
+        implements SeekableByteChannel {
+    private PositionalReader reader;
+    private long position;
+    private boolean open;
+
+    //----------------------------------------------------------------------
+
+    ReadChannel(PositionalReader reader) {
+        this.reader = reader;
+        open = true;
+    }
+
+    //----------------------------------------------------------------------
+
+    public void close()
+            throws IOException {
+        if (open) {
+            open = false;
+            reader.close();
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    //----------------------------------------------------------------------
+
+    public long position()
+            throws IOException {
+        checkOpen();
+        return position;
+    }
+
+    //----------------------------------------------------------------------
+
+    public SeekableByteChannel position(long newPosition)
+            throws IOException {
+        checkOpen();
+
+        if (newPosition < 0)
+            throw new IllegalArgumentException(String.valueOf(newPosition));
+
+        position = newPosition;
+        return this;
+    }
+
+    //----------------------------------------------------------------------
+
+    public int read(ByteBuffer dst)
+            throws IOException {
+        checkOpen();
+
+        int n = reader.read(position, dst);
+
+        if (n > 0)
+            position += n;
+
+        return n;
+    }
+
+    //----------------------------------------------------------------------
+
+    public long size()
+            throws IOException {
+        checkOpen();
+        return reader.size();
+    }
+
+    //----------------------------------------------------------------------
+
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    //----------------------------------------------------------------------
+
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    //----------------------------------------------------------------------
+
+    private void checkOpen()
+            throws ClosedChannelException {
+        if (!open)
+            throw new ClosedChannelException();
+    }
+}
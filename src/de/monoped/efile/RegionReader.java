@@ -0,0 +1,82 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Positional reader for a region of another reader, e.g. an archive stored
+ * uncompressed inside another archive.
+ */
+
+class RegionReader
+        implements PositionalReader {
+    private PositionalReader reader;
+    private long offset, size;
+    private boolean owner;
+
+    //----------------------------------------------------------------------
+
+    /**
+     * @param reader Reader to read from.
+     * @param offset Start of the region in the reader.
+     * @param size   Size of the region.
+     * @param owner  If true, closing this reader closes the other one.
+     */
+
+    RegionReader(PositionalReader reader, long offset, long size, boolean owner) {
+        this.reader = reader;
+        this.offset = offset;
+        this.size = size;
+        this.owner = owner;
+    }
+
+    //----------------------------------------------------------------------
+
+    public void close()
+            throws IOException {
+        if (owner)
+            reader.close();
+    }
+
+    //----------------------------------------------------------------------
+
+    public int read(long position, ByteBuffer dst)
+            throws IOException {
+        if (position >= size)
+            return -1;
+
+        ByteBuffer part = dst.duplicate();
+
+        part.limit(part.position() + (int) Math.min(dst.remaining(), size - position));
+
+        int n = reader.read(offset + position, part);
+
+        if (n > 0)
+            dst.position(dst.position() + n);
+
+        return n;
+    }
+
+    //----------------------------------------------------------------------
+
+    public long size() {
+        return size;
+    }
+}
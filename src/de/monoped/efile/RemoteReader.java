@@ -0,0 +1,121 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Positional reader over the channel of an EFile, typically a remote one.
+ * Small reads are served from a read-ahead block, so that parsing headers
+ * and inflating entries in small pieces does not cost a round trip each.
+ * Reads are serialized: the channel has a single position, and the
+ * backends read over the file's one connection.
+ */
+
+class RemoteReader
+        implements PositionalReader {
+    static final int BLOCK = 256 * 1024;
+
+    private SeekableByteChannel channel;
+    private long size, blockPos;
+    private byte[] block;
+    private int blockLen;
+
+    //----------------------------------------------------------------------
+
+    RemoteReader(EFile file)
+            throws IOException {
+        channel = file.getChannel();
+
+        try {
+            size = channel.size();
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+
+        block = new byte[BLOCK];
+    }
+
+    //----------------------------------------------------------------------
+
+    public synchronized void close()
+            throws IOException {
+        channel.close();
+    }
+
+    //----------------------------------------------------------------------
+
+    public synchronized int read(long position, ByteBuffer dst)
+            throws IOException {
+        if (position >= size)
+            return -1;
+
+        if (!dst.hasRemaining())
+            return 0;
+
+        // Large reads go directly into the destination
+
+        if (position < blockPos || position >= blockPos + blockLen) {
+            if (dst.remaining() >= BLOCK) {
+                int n = fill(position, dst);
+
+                return n > 0 ? n : -1;
+            }
+
+            blockLen = 0;
+            blockPos = position;
+            blockLen = fill(position, ByteBuffer.wrap(block, 0, (int) Math.min(BLOCK, size - position)));
+
+            if (blockLen == 0)
+                return -1;
+        }
+
+        int off = (int) (position - blockPos),
+                n = Math.min(dst.remaining(), blockLen - off);
+
+        dst.put(block, off, n);
+        return n;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Read until the buffer is full or the file ends.
+     */
+
+    private int fill(long position, ByteBuffer dst)
+            throws IOException {
+        int total = 0, n;
+
+        channel.position(position);
+
+        while (dst.hasRemaining() && (n = channel.read(dst)) >= 0)
+            total += n;
+
+        return total;
+    }
+
+    //----------------------------------------------------------------------
+
+    public long size() {
+        return size;
+    }
+}
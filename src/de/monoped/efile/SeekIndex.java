@@ -0,0 +1,298 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Seek index of a deflated entry: checkpoints at block boundaries about
+ * every spacing bytes of uncompressed data, each with the window needed to
+ * resume inflating there. A read at any position then inflates at most one
+ * spacing from the checkpoint before it.
+ *
+ * A sidecar holds the checkpoints with their windows compressed; it is only
+ * used if size, compressed size and CRC of the entry and the spacing match.
+ */
+
+class SeekIndex {
+    static final int MAGIC = 0x4b534645,     // "EFSK"
+            VERSION = 1,
+            PACKED = RawInflater.WSIZE + 1024;    // room for a deflated window
+
+    private long size, csize, crc, spacing;
+    private ArrayList<Checkpoint> checkpoints;
+
+    //----------------------------------------------------------------------
+
+    private SeekIndex(ZipEntry entry, long spacing, ArrayList<Checkpoint> checkpoints) {
+        size = entry.getSize();
+        csize = entry.getCompressedSize();
+        crc = entry.getCrc();
+        this.spacing = spacing;
+        this.checkpoints = checkpoints;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return the index of an entry, read from the sidecar if it matches.
+     * Otherwise the index is built and written to the sidecar; failure to
+     * write the sidecar is ignored.
+     *
+     * @param data    Compressed data of the entry.
+     * @param sidecar Index file, null to build the index in memory only.
+     */
+
+    static SeekIndex open(PositionalReader data, ZipEntry entry, long spacing, File sidecar)
+            throws IOException {
+        if (sidecar != null && sidecar.isFile()) {
+            SeekIndex index;
+
+            try {
+                index = load(sidecar, entry, spacing);
+            } catch (IOException ex) {
+                // truncated or unreadable sidecar, rebuild it
+                index = null;
+            }
+
+            if (index != null)
+                return index;
+        }
+
+        SeekIndex index = build(data, entry, spacing);
+
+        if (sidecar != null)
+            try {
+                index.write(sidecar);
+            } catch (IOException ex) {
+                // read-only location, keep the index in memory
+            }
+
+        return index;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Inflate the entry once, recording checkpoints, and check its CRC.
+     */
+
+    static SeekIndex build(PositionalReader data, ZipEntry entry, long spacing)
+            throws IOException {
+        ArrayList<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+        RawInflater inflater = new RawInflater(data, null);
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[LocalFile.BUFSIZE];
+        int n;
+
+        inflater.setCheckpoints(spacing, checkpoints);
+
+        while ((n = inflater.read(buf, 0, buf.length)) > 0)
+            crc.update(buf, 0, n);
+
+        if (inflater.getPosition() != entry.getSize() || (entry.getCrc() != -1 && crc.getValue() != entry.getCrc()))
+            throw new ZipException(entry.getName() + ": invalid entry size or CRC");
+
+        return new SeekIndex(entry, spacing, checkpoints);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Read a sidecar; return null if it does not belong to the entry or
+     * holds implausible counts or lengths.
+     */
+
+    static SeekIndex load(File sidecar, ZipEntry entry, long spacing)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)));
+
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != entry.getSize()
+                    || in.readLong() != entry.getCompressedSize() || in.readLong() != entry.getCrc()
+                    || in.readLong() != spacing)
+                return null;
+
+            int count = in.readInt();
+
+            // At most one checkpoint per spacing, plus the one at the end
+
+            if (count < 0 || spacing <= 0 || count > entry.getSize() / spacing + 1)
+                return null;
+
+            ArrayList<Checkpoint> checkpoints = new ArrayList<Checkpoint>(count);
+            long last = 0;
+            Inflater inflater = new Inflater();
+
+            try {
+                for (int i = 0; i < count; ++i) {
+                    Checkpoint cp = new Checkpoint();
+                    int wlen, plen;
+                    byte[] packed;
+
+                    cp.out = in.readLong();
+                    cp.bit = in.readLong();
+                    wlen = in.readInt();
+                    plen = in.readInt();
+
+                    if (cp.out < last || cp.out > entry.getSize() || cp.bit < 0
+                            || wlen < 0 || wlen > RawInflater.WSIZE || plen < 0 || plen > PACKED)
+                        return null;
+
+                    last = cp.out;
+                    cp.window = new byte[wlen];
+                    packed = new byte[plen];
+                    in.readFully(packed);
+                    inflater.reset();
+                    inflater.setInput(packed);
+
+                    if (inflater.inflate(cp.window) != cp.window.length)
+                        return null;
+
+                    checkpoints.add(cp);
+                }
+            } catch (DataFormatException ex) {
+                return null;
+            } finally {
+                inflater.end();
+            }
+
+            return new SeekIndex(entry, spacing, checkpoints);
+        } finally {
+            in.close();
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Write the index to a temporary file next to the sidecar that then
+     * replaces it.
+     */
+
+    void write(File sidecar)
+            throws IOException {
+        File tmp = Utils.tempFile(sidecar);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        Deflater deflater = new Deflater();
+        byte[] buf = new byte[PACKED];
+        boolean ok = false;
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(size);
+            out.writeLong(csize);
+            out.writeLong(crc);
+            out.writeLong(spacing);
+            out.writeInt(checkpoints.size());
+
+            for (int i = 0; i < checkpoints.size(); ++i) {
+                Checkpoint cp = checkpoints.get(i);
+
+                deflater.reset();
+                deflater.setInput(cp.window);
+                deflater.finish();
+
+                int n = deflater.deflate(buf);
+
+                out.writeLong(cp.out);
+                out.writeLong(cp.bit);
+                out.writeInt(cp.window.length);
+                out.writeInt(n);
+                out.write(buf, 0, n);
+            }
+
+            out.close();
+            ok = true;
+        } finally {
+            deflater.end();
+
+            if (!ok) {
+                out.close();
+                tmp.delete();
+            }
+        }
+
+        Utils.replace(tmp, sidecar);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return the last checkpoint at or before a position, null for the
+     * start of the data.
+     */
+
+    Checkpoint find(long position) {
+        int lo = 0, hi = checkpoints.size() - 1;
+        Checkpoint found = null;
+
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            Checkpoint cp = checkpoints.get(mid);
+
+            if (cp.out <= position) {
+                found = cp;
+                lo = mid + 1;
+            } else
+                hi = mid - 1;
+        }
+
+        return found;
+    }
+
+    //----------------------------------------------------------------------
+
+    boolean matches(ZipEntry entry) {
+        return entry.getSize() == size && entry.getCompressedSize() == csize && entry.getCrc() == crc;
+    }
+
+    //----------------------------------------------------------------------
+
+    int size() {
+        return checkpoints.size();
+    }
+
+    //----------------------------------------------------------------------
+    //----------------------------------------------------------------------
+
+    /**
+     * Block boundary: uncompressed position, bit position in the compressed
+     * data and the up to 32 KB of output before it.
+     */
+
+    static class Checkpoint {
+        long out, bit;
+        byte[] window;
+    }
+}
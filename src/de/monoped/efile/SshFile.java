@@ -20,13 +20,26 @@ package de.monoped.efile;
 import com.trilead.ssh2.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SshFile
         implements EFile {
+    // Largest read the SFTP client accepts per request
+
+    static final int MAX_READ = 32768;
+
+    // Status of a missing file (com.trilead.ssh2.sftp.ErrorCodes)
+
+    private static final int SSH_FX_NO_SUCH_FILE = 2;
+
+    private MetadataCache cache;
     private SFTPv3Client client;
     private Connection connection;
     private Path curpath;
@@ -36,6 +49,7 @@ public class SshFile
         this.server = server;
         this.user = user;
         curpath = new Path(path);
+        cache = MetadataCache.getInstance();
     }
 
     public SshFile(String server, String user, String password, String path)
@@ -94,29 +108,43 @@ public class SshFile
         if (curpath.getPath().equals("/"))
             return;
 
-        SFTPv3FileAttributes curfile = client.stat(curpath.getPath());
+        SFTPv3FileAttributes curfile = stat(curpath.getPath());
 
         if (curfile == null)
             return;
 
-        if (curfile.isDirectory())
-            client.rmdir(curpath.getPath());
-        else
-            client.rm(curpath.getPath());
+        try {
+            if (curfile.isDirectory())
+                client.rmdir(curpath.getPath());
+            else
+                client.rm(curpath.getPath());
+        } finally {
+            cache.changed(getBase(), curpath.getPath());
+        }
     }
 
     public void delete(boolean recursive)
             throws IOException {
+        delete(recursive, null);
+    }
+
+    public void delete(boolean recursive, ProgressListener listener)
+            throws IOException {
         if (!recursive || !isDirectory())
             delete();
         else
-            deleteDir(curpath.getPath());
+            try {
+                DeleteEngine.delete(curpath.getPath(), new SshDeleteOps(),
+                        DeleteEngine.REMOTE_PARALLELISM, listener);
+            } finally {
+                cache.invalidateTree(getBase(), curpath.getPath());
+                cache.changed(getBase(), curpath.getPath());
+            }
     }
 
     public boolean exists() {
         try {
-            client.stat(curpath.getPath());
-            return true;
+            return stat(curpath.getPath()) != null;
         } catch (IOException ex) {
         }
 
@@ -141,6 +169,21 @@ public class SshFile
         return out.toByteArray();
     }
 
+    public ByteBuffer getByteBuffer()
+            throws IOException {
+        SFTPv3FileAttributes attr = stat(curpath.getPath());
+
+        if (attr == null)
+            throw new FileNotFoundException(curpath.getPath());
+
+        return Utils.readBuffer(getInputStream(), attr.size != null ? attr.size : -1);
+    }
+
+    public SeekableByteChannel getChannel()
+            throws IOException {
+        return new ReadChannel(new SshReader(client, client.openFileRO(curpath.getPath()), false));
+    }
+
     public InputStream getInputStream()
             throws IOException {
         SFTPv3FileHandle handle = client.openFileRO(curpath.getPath());
@@ -155,7 +198,8 @@ public class SshFile
     public OutputStream getOutputStream() throws IOException {
         SFTPv3FileHandle handle = client.createFileTruncate(curpath.getPath());
 
-        return new SshOutputStream(handle);
+        cache.changed(getBase(), curpath.getPath());
+        return new SshOutputStream(handle, curpath.getPath());
     }
 
     public String getPath() {
@@ -164,7 +208,9 @@ public class SshFile
 
     public boolean isDirectory() {
         try {
-            return client.stat(curpath.getPath()).isDirectory();
+            SFTPv3FileAttributes attr = stat(curpath.getPath());
+
+            return attr != null && attr.isDirectory();
         } catch (IOException ex) {
         }
 
@@ -181,6 +227,18 @@ public class SshFile
         return new SshFileIterator(list(filter));
     }
 
+    public long length()
+            throws IOException {
+        SFTPv3FileAttributes attr = stat(curpath.getPath());
+
+        if (attr == null)
+            throw new FileNotFoundException(curpath.getPath());
+
+        Long size = attr.size;
+
+        return size != null ? size : 0;
+    }
+
     public String[] list()
             throws IOException {
         return list(curpath.getPath());
@@ -188,7 +246,7 @@ public class SshFile
 
     public String[] list(FilenameFilter filter)
             throws IOException {
-        Vector children = client.ls(curpath.getPath());
+        Vector children = ls(curpath.getPath());
 
         if (children != null) {
             ArrayList<String> show = new ArrayList<String>();
@@ -206,35 +264,53 @@ public class SshFile
         return null;
     }
 
+    public FileEntry[] listEntries()
+            throws IOException {
+        return toEntries(ls(curpath.getPath()));
+    }
+
+    /**
+     * Create the missing directories of the path, from the deepest existing
+     * one downwards. A directory created meanwhile by someone else counts
+     * as created.
+     *
+     * @return false if a component exists and is not a directory.
+     */
+
     public boolean mkdirs()
             throws IOException {
-        String[] comps = curpath.getPath().split("/");
+        ArrayList<String> missing = new ArrayList<String>();
+        Path dir = new Path(curpath.getPath());
 
-        String wd = "/";
+        while (dir.getPath().length() > 0 && !dir.getPath().equals("/")) {
+            SFTPv3FileAttributes attr = stat(dir.getPath());
 
-        for (int i = 0; i < comps.length; ++i) {
-            String comp = comps[i];
+            if (attr != null) {
+                if (!attr.isDirectory())
+                    return false;
 
-            if (comp.length() > 0) {
-                String[] files = list(wd);
-                boolean found = false;
+                break;
+            }
 
-                for (int j = 0; j < files.length; ++j) {
-                    String file = files[j];
+            missing.add(dir.getPath());
+            dir.parent();
+        }
 
-                    if (file.equals(comp)) {
-                        found = true;
-                        break;
-                    }
-                }
+        for (int i = missing.size() - 1; i >= 0; --i) {
+            String wd = missing.get(i);
 
-                String wdnew = wd.endsWith("/") ? wd + comp : wd + "/" + comp;
+            try {
+                client.mkdir(wd, 0755);
+            } catch (SFTPException ex) {
+                cache.changed(getBase(), wd);
 
-                if (!found)
-                    client.mkdir(wdnew, 0755);
+                SFTPv3FileAttributes attr = stat(wd);
 
-                wd = wdnew;
+                if (attr == null || !attr.isDirectory())
+                    throw ex;
             }
+
+            cache.changed(getBase(), wd);
         }
 
         return true;
@@ -257,6 +333,50 @@ public class SshFile
         out.close();
     }
 
+    public int read(long position, ByteBuffer dst)
+            throws IOException {
+        SshReader reader = new SshReader(client, client.openFileRO(curpath.getPath()), false);
+
+        try {
+            return reader.read(position, dst);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public ByteBuffer[] readVectored(List<FileRange> ranges)
+            throws IOException {
+        return readVectored(ranges, VectoredRead.DEFAULT_GAP);
+    }
+
+    /**
+     * Read several ranges. The first worker uses our SFTP channel, the
+     * others open their own channels on the connection.
+     */
+
+    public ByteBuffer[] readVectored(List<FileRange> ranges, int maxGap)
+            throws IOException {
+        final String path = curpath.getPath();
+        final AtomicBoolean mainUsed = new AtomicBoolean();
+
+        return VectoredRead.read(ranges, maxGap, VectoredRead.PARALLELISM, new VectoredRead.Factory() {
+            public PositionalReader open()
+                    throws IOException {
+                if (!mainUsed.getAndSet(true))
+                    return new SshReader(client, client.openFileRO(path), false);
+
+                SFTPv3Client c = new SFTPv3Client(connection);
+
+                try {
+                    return new SshReader(c, c.openFileRO(path), true);
+                } catch (IOException ex) {
+                    c.close();
+                    throw ex;
+                }
+            }
+        });
+    }
+
     public void setName(String name) {
         curpath.setName(name);
     }
@@ -269,33 +389,66 @@ public class SshFile
         return "ssh://" + user + "@" + server + curpath.getPath();
     }
 
-    private boolean deleteDir(String path)
+    public Closeable watch(FileEventListener listener)
             throws IOException {
-        Vector children = client.ls(path);
-        String parent = path + "/";
+        return watch(listener, PollingWatch.DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Watch this directory, polling on a separate SFTP channel.
+     *
+     * @param listener Receives the events.
+     * @param interval Polling interval in milliseconds.
+     */
+
+    public Closeable watch(FileEventListener listener, long interval)
+            throws IOException {
+        final SFTPv3Client watchClient = new SFTPv3Client(connection);
+
+        return new PollingWatch(curpath.getPath(), new PollingWatch.Lister() {
+            public FileEntry[] list(String dir)
+                    throws IOException {
+                return toEntries(watchClient.ls(dir));
+            }
+
+            public void close() {
+                watchClient.close();
+            }
+        }, listener, interval).start();
+    }
+
+    static FileEntry[] toEntries(Vector children) {
+        ArrayList<FileEntry> entries = new ArrayList<FileEntry>(children.size());
 
         for (Iterator it = children.iterator(); it.hasNext(); ) {
             SFTPv3DirectoryEntry child = (SFTPv3DirectoryEntry) it.next();
 
-            if (child.filename.equals(".") || child.filename.equals(".."))
-                continue;
+            if (!child.filename.equals(".") && !child.filename.equals(".."))
+                entries.add(toEntry(child.filename, child.attributes));
+        }
 
-            String childpath = parent + child.filename;
+        return entries.toArray(new FileEntry[entries.size()]);
+    }
 
-            if (child.attributes.isDirectory()) {
-                if (!deleteDir(childpath))
-                    return false;
-            } else
-                client.rm(childpath);
-        }
+    static FileEntry toEntry(String name, SFTPv3FileAttributes attr) {
+        FileEntry.Type type;
 
-        client.rmdir(path);
-        return true;
+        if (attr.isDirectory())
+            type = FileEntry.Type.DIRECTORY;
+        else if (attr.isSymlink())
+            type = FileEntry.Type.LINK;
+        else if (attr.isRegularFile())
+            type = FileEntry.Type.FILE;
+        else
+            type = FileEntry.Type.OTHER;
+
+        return new FileEntry(name, type, attr.size != null ? attr.size : -1,
+                attr.mtime != null ? (attr.mtime & 0xffffffffL) * 1000 : 0);
     }
 
     private String[] list(String path)
             throws IOException {
-        Vector children = client.ls(path);
+        Vector children = ls(path);
 
         if (children != null) {
             String[] childArray = new String[children.size()];
@@ -310,6 +463,62 @@ public class SshFile
         return null;
     }
 
+    /**
+     * List a directory through the cache. The attributes of the children
+     * are cached too, except for links, whose stat would follow them.
+     */
+
+    private Vector ls(String path)
+            throws IOException {
+        Object cached = cache.get(MetadataCache.LIST, getBase(), path);
+
+        if (cached instanceof Vector)
+            return (Vector) cached;
+
+        Vector children = client.ls(path);
+        String dir = path.endsWith("/") ? path : path + "/";
+
+        cache.put(MetadataCache.LIST, getBase(), path, children, 1 + children.size());
+
+        for (Iterator it = children.iterator(); it.hasNext(); ) {
+            SFTPv3DirectoryEntry child = (SFTPv3DirectoryEntry) it.next();
+
+            if (!child.filename.equals(".") && !child.filename.equals("..") && !child.attributes.isSymlink())
+                cache.put(MetadataCache.STAT, getBase(), dir + child.filename, child.attributes, 1);
+        }
+
+        return children;
+    }
+
+    /**
+     * Stat a file through the cache; null if it does not exist.
+     */
+
+    private SFTPv3FileAttributes stat(String path)
+            throws IOException {
+        Object cached = cache.get(MetadataCache.STAT, getBase(), path);
+
+        if (cached == MetadataCache.ABSENT)
+            return null;
+
+        if (cached != null)
+            return (SFTPv3FileAttributes) cached;
+
+        SFTPv3FileAttributes attr;
+
+        try {
+            attr = client.stat(path);
+        } catch (SFTPException ex) {
+            if (ex.getServerErrorCode() != SSH_FX_NO_SUCH_FILE)
+                throw ex;
+
+            attr = null;
+        }
+
+        cache.put(MetadataCache.STAT, getBase(), path, attr, 1);
+        return attr;
+    }
+
     class SshInputStream
             extends InputStream {
         private SFTPv3FileHandle handle;
@@ -351,18 +560,85 @@ public class SshFile
         }
     }
 
+    class SshReader
+            implements PositionalReader {
+        private SFTPv3Client sftp;
+        private SFTPv3FileHandle handle;
+        private boolean ownClient;
+        private long size;
+
+        SshReader(SFTPv3Client sftp, SFTPv3FileHandle handle, boolean ownClient) {
+            this.sftp = sftp;
+            this.handle = handle;
+            this.ownClient = ownClient;
+            size = -1;
+        }
+
+        public void close()
+                throws IOException {
+            try {
+                sftp.closeFile(handle);
+            } finally {
+                if (ownClient)
+                    sftp.close();
+            }
+        }
+
+        public int read(long position, ByteBuffer dst)
+                throws IOException {
+            int len = Math.min(dst.remaining(), MAX_READ);
+
+            if (len == 0)
+                return 0;
+
+            if (dst.hasArray()) {
+                int n = sftp.read(handle, position, dst.array(), dst.arrayOffset() + dst.position(), len);
+
+                if (n > 0)
+                    dst.position(dst.position() + n);
+
+                return n;
+            }
+
+            byte[] buf = new byte[len];
+            int n = sftp.read(handle, position, buf, 0, len);
+
+            if (n > 0)
+                dst.put(buf, 0, n);
+
+            return n;
+        }
+
+        public long size()
+                throws IOException {
+            if (size < 0) {
+                Long sz = sftp.fstat(handle).size;
+
+                size = sz != null ? sz : 0;
+            }
+
+            return size;
+        }
+    }
+
     class SshOutputStream
             extends OutputStream {
         private SFTPv3FileHandle handle;
+        private String path;
         private long pos;
 
-        SshOutputStream(SFTPv3FileHandle handle) {
+        SshOutputStream(SFTPv3FileHandle handle, String path) {
             this.handle = handle;
+            this.path = path;
         }
 
         public void close()
                 throws IOException {
-            client.closeFile(handle);
+            try {
+                client.closeFile(handle);
+            } finally {
+                cache.changed(getBase(), path);
+            }
         }
 
         public void write(int b)
@@ -384,6 +660,73 @@ public class SshFile
         }
     }
 
+    /**
+     * Delete operations on SFTP channels of our connection, one per thread.
+     */
+
+    class SshDeleteOps
+            implements DeleteEngine.Ops {
+        private ArrayList<SFTPv3Client> clients = new ArrayList<SFTPv3Client>();
+        private ThreadLocal<SFTPv3Client> threadClient = new ThreadLocal<SFTPv3Client>();
+
+        private SFTPv3Client getClient()
+                throws IOException {
+            SFTPv3Client c = threadClient.get();
+
+            if (c == null) {
+                c = new SFTPv3Client(connection);
+                threadClient.set(c);
+
+                synchronized (clients) {
+                    clients.add(c);
+                }
+            }
+
+            return c;
+        }
+
+        public FileEntry[] list(String dir)
+                throws IOException {
+            try {
+                return toEntries(getClient().ls(dir));
+            } catch (SFTPException ex) {
+                if (ex.getServerErrorCode() != SSH_FX_NO_SUCH_FILE)
+                    throw ex;
+
+                return null;
+            }
+        }
+
+        // Files deleted meanwhile by someone else count as deleted
+
+        public void deleteFile(String path)
+                throws IOException {
+            try {
+                getClient().rm(path);
+            } catch (SFTPException ex) {
+                if (ex.getServerErrorCode() != SSH_FX_NO_SUCH_FILE)
+                    throw ex;
+            }
+        }
+
+        public void deleteDir(String path)
+                throws IOException {
+            try {
+                getClient().rmdir(path);
+            } catch (SFTPException ex) {
+                if (ex.getServerErrorCode() != SSH_FX_NO_SUCH_FILE)
+                    throw ex;
+            }
+        }
+
+        public void close() {
+            synchronized (clients) {
+                for (int i = 0; i < clients.size(); ++i)
+                    clients.get(i).close();
+            }
+        }
+    }
+
     class SshFileIterator
             implements Iterator {
         String[] list;
@@ -17,6 +17,15 @@
 
 package de.monoped.efile;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
 public class Utils {
     public static String normalizePath(String path) {
         String[] comps = path.split("/");
@@ -51,6 +60,74 @@ public class Utils {
         return path;
     }
 
+    /**
+     * Move a finished temporary file over a target, atomically where the
+     * file system allows it. The target is never deleted first; if the
+     * move fails, the temporary file is removed only when the target is
+     * still there.
+     */
+
+    static void replace(File tmp, File target)
+            throws IOException {
+        try {
+            try {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            if (target.exists())
+                tmp.delete();
+
+            throw ex;
+        }
+    }
+
+    /**
+     * Create a temporary file next to a target, so that it can be moved
+     * over the target.
+     */
+
+    static File tempFile(File target)
+            throws IOException {
+        return File.createTempFile(target.getName() + ".", ".tmp", target.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Read a stream into a read-only buffer and close it. If the size is
+     * known (>= 0), the data is read into a buffer of exactly that size.
+     */
+
+    static ByteBuffer readBuffer(InputStream in, long size)
+            throws IOException {
+        try {
+            byte[] bytes;
+
+            if (size >= 0 && size <= Integer.MAX_VALUE) {
+                bytes = new byte[(int) size];
+
+                int off = 0, n;
+
+                while (off < bytes.length && (n = in.read(bytes, off, bytes.length - off)) >= 0)
+                    off += n;
+
+                return ByteBuffer.wrap(bytes, 0, off).slice().asReadOnlyBuffer();
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[LocalFile.BUFSIZE];
+            int n;
+
+            while ((n = in.read(buf)) >= 0)
+                out.write(buf, 0, n);
+
+            return ByteBuffer.wrap(out.toByteArray()).asReadOnlyBuffer();
+        } finally {
+            in.close();
+        }
+    }
+
     static String getParentPath(String path) {
         int k = path.lastIndexOf("/");
 
@@ -0,0 +1,261 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Vectored read shared by the backends. Requested ranges are sorted and
+ * ranges closer than a gap threshold are merged, so that many small reads
+ * become a few larger ones. The merged ranges are fetched by several
+ * workers, each with its own reader; the workers come from a shared pool
+ * of daemon threads.
+ */
+
+class VectoredRead {
+    static final int DEFAULT_GAP = 64 * 1024,
+            PARALLELISM = 4;
+
+    // Merged ranges are not grown beyond this size
+
+    private static final long MAX_MERGED = 16 * 1024 * 1024;
+
+    // Idle threads end after a minute
+
+    private static final ExecutorService POOL = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "efile-read");
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private List<FileRange> ranges;
+    private Factory factory;
+    private ByteBuffer[] result;
+    private ArrayList<int[]> groups;
+    private AtomicInteger next;
+    private AtomicReference<Throwable> failure;
+
+    //----------------------------------------------------------------------
+
+    private VectoredRead(List<FileRange> ranges, Factory factory) {
+        this.ranges = ranges;
+        this.factory = factory;
+        result = new ByteBuffer[ranges.size()];
+        groups = new ArrayList<int[]>();
+        next = new AtomicInteger();
+        failure = new AtomicReference<Throwable>();
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Read ranges of a file.
+     *
+     * @param ranges      Ranges to read, in any order.
+     * @param maxGap      Ranges separated by at most this many bytes are
+     *                    fetched as one.
+     * @param parallelism Maximum number of concurrent readers.
+     * @param factory     Opens a reader for each worker.
+     * @return One buffer per range, in the order of the ranges. A buffer
+     * holds less than requested if its range extends beyond the end of file.
+     */
+
+    static ByteBuffer[] read(List<FileRange> ranges, int maxGap, int parallelism, Factory factory)
+            throws IOException {
+        VectoredRead vr = new VectoredRead(ranges, factory);
+
+        vr.merge(maxGap);
+
+        int workers = Math.max(1, Math.min(parallelism, vr.groups.size()));
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+
+        for (int i = 1; i < workers; ++i)
+            futures.add(POOL.submit(vr.new Worker()));
+
+        // The calling thread works too
+
+        vr.work();
+
+        for (Future<?> future : futures)
+            try {
+                future.get();
+            } catch (InterruptedException ex) {
+                vr.failure.compareAndSet(null, ex);
+                throw new IOException(ex);
+            } catch (ExecutionException ex) {
+                vr.failure.compareAndSet(null, ex.getCause());
+            }
+
+        Throwable ex = vr.failure.get();
+
+        if (ex instanceof IOException)
+            throw (IOException) ex;
+
+        if (ex instanceof RuntimeException)
+            throw (RuntimeException) ex;
+
+        if (ex instanceof Error)
+            throw (Error) ex;
+
+        return vr.result;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Sort range indexes by offset and collect them into groups of ranges
+     * to be fetched together.
+     */
+
+    private void merge(int maxGap) {
+        Integer[] order = new Integer[ranges.size()];
+
+        for (int i = 0; i < order.length; ++i)
+            order[i] = i;
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                long d = ranges.get(a).getOffset() - ranges.get(b).getOffset();
+
+                return d < 0 ? -1 : d > 0 ? 1 : 0;
+            }
+        });
+
+        int start = 0;
+
+        while (start < order.length) {
+            long first = ranges.get(order[start]).getOffset(),
+                    end = ranges.get(order[start]).getEnd();
+            int stop = start + 1;
+
+            while (stop < order.length) {
+                FileRange r = ranges.get(order[stop]);
+
+                if (r.getOffset() - end > maxGap || Math.max(end, r.getEnd()) - first > MAX_MERGED)
+                    break;
+
+                end = Math.max(end, r.getEnd());
+                ++stop;
+            }
+
+            int[] group = new int[stop - start];
+
+            for (int i = 0; i < group.length; ++i)
+                group[i] = order[start + i];
+
+            groups.add(group);
+            start = stop;
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    private void work() {
+        PositionalReader reader = null;
+
+        try {
+            int g;
+
+            while (failure.get() == null && (g = next.getAndIncrement()) < groups.size()) {
+                if (reader == null)
+                    reader = factory.open();
+
+                fetch(reader, groups.get(g));
+            }
+        } catch (Throwable ex) {
+            failure.compareAndSet(null, ex);
+        } finally {
+            if (reader != null)
+                try {
+                    reader.close();
+                } catch (IOException ex) {
+                }
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Read the span of a group and hand out slices to its ranges.
+     */
+
+    private void fetch(PositionalReader reader, int[] group)
+            throws IOException {
+        long first = Long.MAX_VALUE, end = 0;
+
+        for (int i = 0; i < group.length; ++i) {
+            FileRange r = ranges.get(group[i]);
+
+            first = Math.min(first, r.getOffset());
+            end = Math.max(end, r.getEnd());
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate((int) (end - first));
+
+        while (buf.hasRemaining())
+            if (reader.read(first + buf.position(), buf) < 0)
+                break;
+
+        int available = buf.position();
+
+        for (int i = 0; i < group.length; ++i) {
+            FileRange r = ranges.get(group[i]);
+            int from = (int) Math.min(r.getOffset() - first, available),
+                    to = (int) Math.min(r.getEnd() - first, available);
+            ByteBuffer slice = buf.duplicate();
+
+            slice.limit(to).position(from);
+            result[group[i]] = slice.slice();
+        }
+    }
+
+    //----------------------------------------------------------------------
+    //----------------------------------------------------------------------
+
+    /**
+     * Opens a reader for a worker. Called from the worker threads.
+     */
+
+    interface Factory {
+        PositionalReader open() throws IOException;
+    }
+
+    //----------------------------------------------------------------------
+
+    class Worker
+            implements Runnable {
+        public void run() {
+            work();
+        }
+    }
+}
@@ -0,0 +1,374 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.ZipException;
+
+/**
+ * Central directory of a zip archive, read directly from the archive.
+ * Unlike java.util.zip.ZipFile this knows where each entry's local header
+ * sits, so uncompressed data can be addressed by file offset. Archives are
+ * read through positional reads only, so they need not be files: an
+ * archive stored inside another one is read in place.
+ */
+
+class ZipDirectory {
+    static final int LOC_SIG = 0x04034b50,
+            CEN_SIG = 0x02014b50,
+            END_SIG = 0x06054b50,
+            END64_SIG = 0x06064b50,
+            END64_LOC_SIG = 0x07064b50;
+    static final int LOC_HDR = 30,
+            CEN_HDR = 46,
+            END_HDR = 22,
+            END64_HDR = 56,
+            END64_LOC_HDR = 20;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ArrayList<Entry> entries;
+    private HashMap<String, Entry> entryMap;
+    private long cdOffset, cdSize;
+
+    //----------------------------------------------------------------------
+
+    private ZipDirectory(long cdOffset, long cdSize, int count) {
+        this.cdOffset = cdOffset;
+        this.cdSize = cdSize;
+        entries = new ArrayList<Entry>(count);
+        entryMap = new HashMap<String, Entry>(count * 4 / 3 + 1);
+    }
+
+    //----------------------------------------------------------------------
+
+    static ZipDirectory read(FileChannel channel)
+            throws IOException {
+        return read(reader(channel));
+    }
+
+    //----------------------------------------------------------------------
+
+    static ZipDirectory read(PositionalReader reader)
+            throws IOException {
+        long[] end = readEnd(reader);
+
+        return parse(readCentral(reader, end), end);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Locate the end record and return count, size and file offset of the
+     * central directory, and the length of data in front of the archive.
+     * The offsets in the archive count from the start of the archive, which
+     * need not be the start of the file (self-extracting archives, launcher
+     * scripts in front of jars).
+     */
+
+    static long[] readEnd(FileChannel channel)
+            throws IOException {
+        return readEnd(reader(channel));
+    }
+
+    //----------------------------------------------------------------------
+
+    static long[] readEnd(PositionalReader reader)
+            throws IOException {
+        long size = reader.size();
+
+        // End record is at the end, followed by a comment of up to 64 KB
+
+        int tail = (int) Math.min(size, END_HDR + 0xffff + END64_LOC_HDR);
+        ByteBuffer buf = readAt(reader, size - tail, tail);
+        int end = -1;
+
+        for (int i = tail - END_HDR; i >= 0; --i)
+            if (buf.getInt(i) == END_SIG) {
+                end = i;
+                break;
+            }
+
+        if (end < 0)
+            throw new ZipException("End of central directory not found");
+
+        long endPos = size - tail + end,
+                count = buf.getShort(end + 10) & 0xffff,
+                cdSize = buf.getInt(end + 12) & 0xffffffffL,
+                cdOffset = buf.getInt(end + 16) & 0xffffffffL;
+
+        if (end >= END64_LOC_HDR && buf.getInt(end - END64_LOC_HDR) == END64_LOC_SIG) {
+            long locPos = endPos - END64_LOC_HDR,
+                    end64Pos = buf.getLong(end - END64_LOC_HDR + 8);
+
+            // The locator's offset is off by the prefix, if any; the zip64
+            // end record normally sits right in front of the locator
+
+            if (!isEnd64(reader, end64Pos, locPos))
+                end64Pos = locPos - END64_HDR;
+
+            if (!isEnd64(reader, end64Pos, locPos))
+                throw new ZipException("Invalid zip64 end record");
+
+            ByteBuffer end64 = readAt(reader, end64Pos, END64_HDR);
+
+            endPos = end64Pos;
+            count = end64.getLong(32);
+            cdSize = end64.getLong(40);
+            cdOffset = end64.getLong(48);
+        }
+
+        long prefix = endPos - cdSize - cdOffset;
+
+        if (count < 0 || cdSize < 0 || cdOffset < 0 || prefix < 0)
+            throw new ZipException("Invalid central directory offset or size");
+
+        if (count > Integer.MAX_VALUE || cdSize > Integer.MAX_VALUE)
+            throw new ZipException("Central directory too large");
+
+        if (count > cdSize / CEN_HDR)
+            throw new ZipException("Invalid central directory entry count");
+
+        return new long[]{count, cdSize, cdOffset + prefix, prefix};
+    }
+
+    //----------------------------------------------------------------------
+
+    private static boolean isEnd64(PositionalReader reader, long pos, long limit)
+            throws IOException {
+        return pos >= 0 && pos + END64_HDR <= limit && readAt(reader, pos, 4).getInt(0) == END64_SIG;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Read the raw central directory.
+     *
+     * @param end Result of readEnd.
+     */
+
+    static ByteBuffer readCentral(FileChannel channel, long[] end)
+            throws IOException {
+        return readCentral(reader(channel), end);
+    }
+
+    //----------------------------------------------------------------------
+
+    static ByteBuffer readCentral(PositionalReader reader, long[] end)
+            throws IOException {
+        return readAt(reader, end[2], (int) end[1]);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Parse a raw central directory.
+     *
+     * Entry offsets are returned as file offsets.
+     *
+     * @param cd  Result of readCentral.
+     * @param end Result of readEnd.
+     */
+
+    static ZipDirectory parse(ByteBuffer cd, long[] end)
+            throws IOException {
+        int count = (int) end[0];
+        ZipDirectory dir = new ZipDirectory(end[2], end[1], count);
+        long prefix = end[3];
+        int pos = 0;
+
+        for (int i = 0; i < count; ++i) {
+            if (pos + CEN_HDR > cd.limit() || cd.getInt(pos) != CEN_SIG)
+                throw new ZipException("Invalid central directory header");
+
+            Entry e = new Entry();
+            int nameLen = cd.getShort(pos + 28) & 0xffff,
+                    extraLen = cd.getShort(pos + 30) & 0xffff,
+                    commentLen = cd.getShort(pos + 32) & 0xffff;
+
+            if (pos + CEN_HDR + nameLen + extraLen + commentLen > cd.limit())
+                throw new ZipException("Invalid central directory header");
+
+            e.method = cd.getShort(pos + 10) & 0xffff;
+            e.dosTime = cd.getInt(pos + 12) & 0xffffffffL;
+            e.crc = cd.getInt(pos + 16) & 0xffffffffL;
+            e.csize = cd.getInt(pos + 20) & 0xffffffffL;
+            e.size = cd.getInt(pos + 24) & 0xffffffffL;
+            e.offset = cd.getInt(pos + 42) & 0xffffffffL;
+            e.name = new String(cd.array(), pos + CEN_HDR, nameLen, UTF8);
+            e.cenPos = pos;
+            e.cenLen = CEN_HDR + nameLen + extraLen + commentLen;
+            readZip64(cd, pos + CEN_HDR + nameLen, extraLen, e);
+            e.offset += prefix;
+            dir.entries.add(e);
+
+            if (!dir.entryMap.containsKey(e.name))
+                dir.entryMap.put(e.name, e);
+
+            pos += CEN_HDR + nameLen + extraLen + commentLen;
+        }
+
+        return dir;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Replace 0xffffffff placeholders by the values from the zip64 extra field.
+     */
+
+    private static void readZip64(ByteBuffer cd, int pos, int len, Entry e) {
+        int end = pos + len;
+
+        while (pos + 4 <= end) {
+            int tag = cd.getShort(pos) & 0xffff,
+                    sz = cd.getShort(pos + 2) & 0xffff,
+                    p = pos + 4;
+
+            if (tag == 1) {
+                if (e.size == 0xffffffffL && p + 8 <= end) {
+                    e.size = cd.getLong(p);
+                    p += 8;
+                }
+
+                if (e.csize == 0xffffffffL && p + 8 <= end) {
+                    e.csize = cd.getLong(p);
+                    p += 8;
+                }
+
+                if (e.offset == 0xffffffffL && p + 8 <= end)
+                    e.offset = cd.getLong(p);
+
+                return;
+            }
+
+            pos = p + sz;
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    static ByteBuffer readAt(FileChannel channel, long pos, int len)
+            throws IOException {
+        return readAt(reader(channel), pos, len);
+    }
+
+    //----------------------------------------------------------------------
+
+    static ByteBuffer readAt(PositionalReader reader, long pos, int len)
+            throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+
+        while (buf.hasRemaining()) {
+            int n = reader.read(pos + buf.position(), buf);
+
+            if (n < 0)
+                throw new EOFException();
+        }
+
+        buf.flip();
+        return buf;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return the file offset of an entry's data, just behind its local header.
+     */
+
+    static long getDataOffset(PositionalReader reader, Entry e)
+            throws IOException {
+        return getDataOffset(reader, e.offset);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return the file offset of an entry's data, given the offset of its
+     * local header.
+     */
+
+    static long getDataOffset(PositionalReader reader, long headerOffset)
+            throws IOException {
+        ByteBuffer loc = readAt(reader, headerOffset, LOC_HDR);
+
+        if (loc.getInt(0) != LOC_SIG)
+            throw new ZipException("Invalid local header at " + headerOffset);
+
+        return headerOffset + LOC_HDR + (loc.getShort(26) & 0xffff) + (loc.getShort(28) & 0xffff);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return a reader for a whole channel; closing it leaves the channel open.
+     */
+
+    static PositionalReader reader(FileChannel channel)
+            throws IOException {
+        return new ChannelReader(channel, 0, channel.size(), false);
+    }
+
+    //----------------------------------------------------------------------
+
+    long getCentralDirectoryOffset() {
+        return cdOffset;
+    }
+
+    //----------------------------------------------------------------------
+
+    long getCentralDirectorySize() {
+        return cdSize;
+    }
+
+    //----------------------------------------------------------------------
+
+    Entry getEntry(String name) {
+        return entryMap.get(name);
+    }
+
+    //----------------------------------------------------------------------
+
+    ArrayList<Entry> getEntries() {
+        return entries;
+    }
+
+    //----------------------------------------------------------------------
+    //----------------------------------------------------------------------
+
+    static class Entry {
+        String name;
+        int method;
+        long dosTime, crc, csize, size, offset;
+
+        // Data descriptor follows the data (general purpose flag bit 3)
+
+        boolean descriptor;
+
+        // Position and length of the raw central record, 0 if not read
+        // from a central directory
+
+        int cenPos, cenLen;
+    }
+}
@@ -18,11 +18,17 @@
 package de.monoped.efile;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.GregorianCalendar;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
 public class ZipEntryFile
@@ -30,62 +36,138 @@ public class ZipEntryFile
     private ZipFile zip;
     private ZipNode rootNode, node;
     private Path path;
+    private ZipDirectory directory;
+    private ArchiveCache.Archive archive;
+    private File archiveFile;
+    private ZipWriter writer;
+    private ArchivePool pool;
+    private NestedArchive nested;
+    private SeekIndex seekIndex;
 
     public ZipEntryFile(ZipFile zip) {
         this(zip, "/");
     }
 
     public ZipEntryFile(ZipFile zip, String path) {
+        this(zip, buildTree(zip), path);
+    }
+
+    ZipEntryFile(ZipFile zip, ZipNode rootNode, String path) {
         this.zip = zip;
+        this.rootNode = rootNode;
         this.path = new Path(path);
+        node = getNode();
+    }
 
-        rootNode = new ZipNode(null, null, "");
+    /**
+     * Create a file in a cached archive; close() releases the archive.
+     */
 
-        // build tree
+    ZipEntryFile(ArchiveCache.Archive archive, String path) {
+        this(archive.jar, archive.root, path);
+        this.archive = archive;
+        pool = archive.pool;
+    }
 
-        for (Enumeration entries = zip.entries(); entries.hasMoreElements(); ) {
-            ZipEntry entry = (ZipEntry) entries.nextElement();
-            String[] comps = entry.getName().split("/");
-            Node base = rootNode;
-            int icomp;
+    private ZipEntryFile(File archiveFile, ZipIndex index, String path) {
+        this.archiveFile = archiveFile;
+        rootNode = new ZipNode(index, 0, null);
+        this.path = new Path(path);
+        node = getNode();
+    }
 
-            boolean found = false;
+    /**
+     * Create a file in a nested archive; close() releases the archive.
+     */
 
-            for (icomp = 0; icomp < comps.length; ++icomp) {
-                // Find path component in current base's entries
+    private ZipEntryFile(NestedArchive nested, String path) {
+        this.nested = nested;
+        rootNode = nested.root;
+        this.path = new Path(path);
+        node = getNode();
+    }
 
-                String comp = comps[icomp];
+    /**
+     * Create a writable file in an archive being written.
+     */
 
-                found = false;
+    ZipEntryFile(ZipWriter writer, String path) {
+        this.writer = writer;
+        this.path = new Path(path);
+    }
 
-                for (Iterator it = base.iterator(); it.hasNext(); ) {
-                    Node child = (Node) it.next();
-                    String childName = child.getName();
+    /**
+     * Open a file in an archive through a sidecar index instead of a
+     * ZipFile. The index is reused if it matches the archive, otherwise it
+     * is rebuilt from the central directory and written to the sidecar.
+     *
+     * @param archive Zip archive.
+     * @param sidecar Index file, e.g. archive + ".idx"; null to keep the
+     *                index in memory only.
+     * @param path    Path inside the archive.
+     */
 
-                    if (childName.equals(comp)) {
-                        base = child;
-                        found = true;
-                        break;
-                    }
-                }
+    public static ZipEntryFile open(File archive, File sidecar, String path)
+            throws IOException {
+        return new ZipEntryFile(archive, ZipIndex.open(archive, sidecar), path);
+    }
 
-                if (!found)
-                    break;
-            }
+    /**
+     * Open a file in an archive on any file system that reads ranges, e.g.
+     * an SshFile or FtpFile, without downloading the archive. Only the end
+     * record and the central directory are read to build the tree; entries
+     * are fetched when they are read.
+     *
+     * @param archive Zip archive; it must stay open while the result is used.
+     * @param path    Path inside the archive.
+     */
 
-            if (!found) {
-                // Not yet present, add dir parts
+    public static ZipEntryFile open(EFile archive, String path)
+            throws IOException {
+        return open(archive.getBase() + archive.getPath(), new RemoteReader(archive), null, path);
+    }
 
-                for (; icomp < comps.length - 1; ++icomp)
-                    base = base.addChild(new ZipNode(null, base, comps[icomp]));
+    /**
+     * Build the compact tree of an archive from its entries, with the local
+     * header offsets from the central directory, so that files of the tree
+     * find their data without reading the directory again.
+     */
 
-                // and file part
+    static ZipNode buildTree(ZipFile zip) {
+        ArrayList<ZipDirectory.Entry> entries = new ArrayList<ZipDirectory.Entry>(zip.size());
+        GregorianCalendar cal = new GregorianCalendar();
+        ZipDirectory directory = null;
+
+        try {
+            FileChannel channel = new FileInputStream(zip.getName()).getChannel();
 
-                base.addChild(new ZipNode(entry, base, comps[comps.length - 1]));
+            try {
+                directory = ZipDirectory.read(channel);
+            } finally {
+                channel.close();
             }
+        } catch (IOException ex) {
+            // Offsets are then looked up per file when needed
         }
 
-        node = getNode();
+        for (Enumeration<? extends ZipEntry> en = zip.entries(); en.hasMoreElements(); ) {
+            ZipEntry entry = en.nextElement();
+            ZipDirectory.Entry e = new ZipDirectory.Entry();
+
+            e.name = entry.getName();
+            e.method = entry.getMethod();
+            e.dosTime = entry.getTime() >= 0 ? ZipIndex.toDosTime(entry.getTime(), cal) : 0;
+            e.crc = entry.getCrc();
+            e.csize = entry.getCompressedSize();
+            e.size = entry.getSize();
+
+            ZipDirectory.Entry dirEntry = directory != null ? directory.getEntry(e.name) : null;
+
+            e.offset = dirEntry != null ? dirEntry.offset : -1;
+            entries.add(e);
+        }
+
+        return new ZipNode(ZipIndex.build(entries, 0, 0, 0), 0, null);
     }
 
     public ZipEntryFile(Path path) {
@@ -98,6 +180,12 @@ public class ZipEntryFile
         try {
             f = super.clone();
             node = getNode();
+
+            if (archive != null)
+                archive.retain();
+
+            if (nested != null)
+                nested.retain();
         } catch (CloneNotSupportedException ex) {
         }
 
@@ -105,30 +193,163 @@ public class ZipEntryFile
     }
 
     public void close() {
+        if (archive != null) {
+            archive.release();
+            archive = null;
+        }
+
+        if (nested != null) {
+            nested.release();
+            nested = null;
+        }
     }
 
     @Override
     public void copyFrom(InputStream in) throws IOException {
-        throw new IOException(zip.getName() + ": can't write");
+        copy(in, getOutputStream());
     }
 
     public void copyFrom(File src)
             throws IOException {
-        throw new IOException(zip.getName() + ": can't write");
+        if (writer == null)
+            throw new IOException(getBase() + ": can't write");
+
+        copy(new FileInputStream(src), writer.newEntry(path.getPath(), src.lastModified()));
+    }
+
+    private static void copy(InputStream in, OutputStream out)
+            throws IOException {
+        try {
+            byte[] buf = new byte[LocalFile.BUFSIZE];
+            int n;
+
+            while ((n = in.read(buf)) >= 0)
+                out.write(buf, 0, n);
+        } finally {
+            in.close();
+            out.close();
+        }
     }
 
     public void delete() {
+        if (writer != null)
+            writer.delete(path.getPath());
+    }
+
+    public void delete(boolean recursive)
+            throws IOException {
+        delete(recursive, null);
+    }
+
+    /**
+     * Delete the entry from an archive opened with ZipWriter.append; with
+     * recursive, the entries below it are deleted as well.
+     */
+
+    public void delete(boolean recursive, ProgressListener listener)
+            throws IOException {
+        if (writer == null)
+            throw new IOException(getBase() + ": can't delete");
+
+        if (recursive)
+            writer.deleteTree(path.getPath(), listener);
+        else if (writer.delete(path.getPath()) && listener != null)
+            listener.progress(path.getPath(), 1);
+    }
+
+    /**
+     * Extract this file, or the contents of this directory, into a target
+     * directory, using all available processors.
+     *
+     * @param target   Directory to extract into.
+     * @param listener Receives a report per file, may be null. A
+     *                 TransferListener also receives the bytes written.
+     * @return Number of bytes written.
+     */
+
+    public long extract(EFile target, ProgressListener listener)
+            throws IOException {
+        return extract(target, Runtime.getRuntime().availableProcessors(), listener);
+    }
+
+    /**
+     * Extract this file, or the contents of this directory, into a target
+     * directory.
+     *
+     * @param threads Number of worker threads.
+     */
+
+    public long extract(EFile target, int threads, ProgressListener listener)
+            throws IOException {
+        if (node == null)
+            throw new FileNotFoundException(path + " (No such file or directory)");
+
+        return ZipExtraction.extract(node, new ZipExtraction.Sources() {
+            public ZipExtraction.Source open()
+                    throws IOException {
+                return openSource();
+            }
+        }, target, threads, listener);
     }
 
-    public void delete(boolean recursive) {
+    /**
+     * Open an archive handle of its own for an extraction worker.
+     */
+
+    private ZipExtraction.Source openSource()
+            throws IOException {
+        if (nested != null)
+            return new ZipExtraction.Source() {
+                public InputStream open(ZipNode node)
+                        throws IOException {
+                    return EntryInputStream.open(nested.reader, false, node.getHeaderOffset(), node.getEntry(), null);
+                }
+
+                public void close() {
+                }
+            };
+
+        if (zip == null)
+            return new ZipExtraction.Source() {
+                public InputStream open(ZipNode node)
+                        throws IOException {
+                    return EntryInputStream.open(archiveFile, node.getHeaderOffset(), node.getEntry());
+                }
+
+                public void close() {
+                }
+            };
+
+        final ZipFile own = new ZipFile(getBase());
+
+        return new ZipExtraction.Source() {
+            public InputStream open(ZipNode node)
+                    throws IOException {
+                return own.getInputStream(node.getEntry());
+            }
+
+            public void close()
+                    throws IOException {
+                own.close();
+            }
+        };
     }
 
     public boolean exists() {
+        if (writer != null)
+            return writer.contains(path.getPath(), false) || writer.contains(path.getPath(), true);
+
         return getNode() != null;
     }
 
     public String getBase() {
-        return zip.getName();
+        if (writer != null)
+            return writer.getName();
+
+        if (nested != null)
+            return nested.name;
+
+        return zip != null ? zip.getName() : archiveFile.getPath();
     }
 
     public String getAbsolutePath() {
@@ -149,7 +370,63 @@ public class ZipEntryFile
         return out.toByteArray();
     }
 
-    public InputStream getInputStream()
+    public ByteBuffer getByteBuffer()
+            throws IOException {
+        ZipEntry entry = getEntry();
+
+        if (entry.getSize() > Integer.MAX_VALUE)
+            throw new IOException(path + ": too large for a buffer (" + entry.getSize() + " bytes)");
+
+        // Stored entries are mapped directly from the archive
+
+        if (entry.getMethod() == ZipEntry.STORED && nested == null) {
+            FileChannel channel = new FileInputStream(getBase()).getChannel();
+
+            try {
+                long offset = getDataOffset(channel, entry);
+
+                if (offset >= 0)
+                    return channel.map(FileChannel.MapMode.READ_ONLY, offset, entry.getSize());
+            } finally {
+                channel.close();
+            }
+        }
+
+        return Utils.readBuffer(openEntry(entry), entry.getSize());
+    }
+
+    public SeekableByteChannel getChannel()
+            throws IOException {
+        return new ReadChannel(openReader());
+    }
+
+    /**
+     * Return the archive offset of an entry's data, -1 if not found.
+     */
+
+    private long getDataOffset(FileChannel channel, ZipEntry entry)
+            throws IOException {
+        return getDataOffset(ZipDirectory.reader(channel), entry);
+    }
+
+    private long getDataOffset(PositionalReader reader, ZipEntry entry)
+            throws IOException {
+        ZipDirectory.Entry dirEntry;
+
+        if (zip == null || node.getHeaderOffset() >= 0)
+            return ZipDirectory.getDataOffset(reader, node.getHeaderOffset());
+
+        synchronized (this) {
+            if (directory == null)
+                directory = ZipDirectory.read(reader);
+
+            dirEntry = directory.getEntry(entry.getName());
+        }
+
+        return dirEntry != null ? ZipDirectory.getDataOffset(reader, dirEntry) : -1;
+    }
+
+    private ZipEntry getEntry()
             throws IOException {
         if (node == null)
             throw new FileNotFoundException(path + " (No such file or directory)");
@@ -157,13 +434,154 @@ public class ZipEntryFile
         if (node.isDirectory())
             throw new FileNotFoundException(path + " (Is a directory)");
 
-        return zip.getInputStream(node.getEntry());
+        return node.getEntry();
+    }
+
+    public InputStream getInputStream()
+            throws IOException {
+        return openEntry(getEntry());
+    }
+
+    private InputStream openEntry(ZipEntry entry)
+            throws IOException {
+        if (pool != null)
+            return pool.open(node.getHeaderOffset(), entry);
+
+        if (nested != null)
+            return EntryInputStream.open(nested.reader, false, node.getHeaderOffset(), entry, null);
+
+        if (zip == null)
+            return EntryInputStream.open(archiveFile, node.getHeaderOffset(), entry);
+
+        return zip.getInputStream(entry);
     }
 
     public String getName() {
         return path.getName();
     }
 
+    /**
+     * Open the archive stored in this entry, e.g. a jar inside a war,
+     * without extracting it. A stored archive is read in place; a
+     * compressed one is inflated into memory, shared through the
+     * ArchiveCache up to its nested limit. The nested archive gets an entry
+     * tree of its own and stays readable after this file is closed.
+     *
+     * @return Root directory of the nested archive.
+     */
+
+    public ZipEntryFile openArchive()
+            throws IOException {
+        return openArchive("/");
+    }
+
+    /**
+     * Open the archive stored in this entry.
+     *
+     * @param path Path inside the nested archive.
+     */
+
+    public ZipEntryFile openArchive(String path)
+            throws IOException {
+        ZipEntry entry = getEntry();
+        String name = getBase() + "!" + getPath();
+        NestedArchive parent = null;
+        PositionalReader reader;
+
+        if (entry.getMethod() == ZipEntry.STORED) {
+            PositionalReader outer;
+
+            if (nested != null) {
+                parent = nested;
+                outer = nested.reader;
+            } else {
+                FileChannel channel = new FileInputStream(getBase()).getChannel();
+
+                outer = new ChannelReader(channel, 0, channel.size(), true);
+            }
+
+            try {
+                long offset = getDataOffset(outer, entry);
+
+                if (offset < 0)
+                    throw new ZipException(name + ": local header not found");
+
+                reader = new RegionReader(outer, offset, entry.getSize(), parent == null);
+            } catch (IOException ex) {
+                if (parent == null)
+                    outer.close();
+
+                throw ex;
+            }
+        } else {
+            String key = name + ":" + entry.getSize() + ":" + entry.getCrc();
+            ArchiveCache cache = ArchiveCache.getInstance();
+            ByteBuffer buf = cache.getInflated(key);
+
+            if (buf == null) {
+                if (entry.getSize() > Integer.MAX_VALUE)
+                    throw new ZipException(name + ": compressed archive too large to open in place");
+
+                buf = Utils.readBuffer(openEntry(entry), entry.getSize());
+                cache.putInflated(key, buf);
+            }
+
+            reader = new BufferReader(buf);
+        }
+
+        return open(name, reader, parent, path);
+    }
+
+    /**
+     * Open a file in an archive read through a reader, closing the reader
+     * on failure.
+     */
+
+    private static ZipEntryFile open(String name, PositionalReader reader, NestedArchive parent, String path)
+            throws IOException {
+        try {
+            return new ZipEntryFile(new NestedArchive(name, reader, ZipIndex.read(reader), parent), path);
+        } catch (IOException ex) {
+            reader.close();
+            throw ex;
+        } catch (IllegalArgumentException ex) {
+            reader.close();
+            throw new ZipException(name + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Give this deflated entry a seek index, so that read, readVectored and
+     * getChannel inflate from the nearest checkpoint before a position
+     * instead of from the start of the entry. The index is read from the
+     * sidecar if it matches the entry, otherwise it is built by inflating
+     * the entry once and written to the sidecar. It applies to this entry
+     * only, and is shared by clones.
+     *
+     * @param spacing Uncompressed bytes between checkpoints, e.g. 4 MB;
+     *                each checkpoint holds a window of 32 KB.
+     * @param sidecar Index file, null to keep the index in memory only.
+     */
+
+    public void setSeekIndex(long spacing, File sidecar)
+            throws IOException {
+        ZipEntry entry = getEntry();
+
+        if (entry.getMethod() != ZipEntry.DEFLATED)
+            return;
+
+        PositionalReader data = openData(entry);
+
+        if (data == null)
+            throw new ZipException(path + ": data offset not found");
+
+        try {
+            seekIndex = SeekIndex.open(data, entry, spacing, sidecar);
+        } finally {
+            data.close();
+        }
+    }
+
     public void setName(String name) {
         if (!Utils.isName(name))
             throw new IllegalArgumentException(name);
@@ -175,6 +593,9 @@ public class ZipEntryFile
         String[] components = path.split("/");
         ZipNode dir = rootNode;
 
+        if (dir == null)
+            return null;
+
         if (components.length == 0)
             return rootNode;
 
@@ -200,7 +621,10 @@ public class ZipEntryFile
 
     public OutputStream getOutputStream()
             throws IOException {
-        throw new IOException(zip.getName() + ": can't write");
+        if (writer == null)
+            throw new IOException(getBase() + ": can't write");
+
+        return writer.newEntry(path.getPath());
     }
 
     public String getParent() {
@@ -216,6 +640,9 @@ public class ZipEntryFile
     }
 
     public boolean isDirectory() {
+        if (writer != null)
+            return writer.contains(path.getPath(), true);
+
         return node != null && node.isDirectory();
     }
 
@@ -227,11 +654,16 @@ public class ZipEntryFile
         return new ZipEntryFileIterator(filter);
     }
 
+    public long length()
+            throws IOException {
+        return isDirectory() ? 0 : getEntry().getSize();
+    }
+
     public String[] list() {
         if (node == null)
             return null;
 
-        int n = node.children.size();
+        int n = node.getChildCount();
         String[] names = new String[n];
         int i = 0;
 
@@ -262,13 +694,142 @@ public class ZipEntryFile
         return names.toArray(new String[0]);
     }
 
-    public boolean mkdirs() {
-        return false;
+    public FileEntry[] listEntries() {
+        if (node == null)
+            return null;
+
+        FileEntry[] entries = new FileEntry[node.getChildCount()];
+        int i = 0;
+
+        for (Iterator<Node> it = node.iterator(); it.hasNext(); ) {
+            ZipNode child = (ZipNode) it.next();
+            ZipEntry entry = child.getEntry();
+            long time = entry != null ? Math.max(entry.getTime(), 0) : 0;
+
+            if (child.isDirectory())
+                entries[i++] = new FileEntry(child.getName(), FileEntry.Type.DIRECTORY, -1, time);
+            else
+                entries[i++] = new FileEntry(child.getName(), FileEntry.Type.FILE, entry.getSize(), time);
+        }
+
+        return entries;
+    }
+
+    public boolean mkdirs()
+            throws IOException {
+        if (writer == null || exists())
+            return false;
+
+        writer.mkdir(path.getPath());
+        return true;
     }
 
     public void putBytes(byte[] bytes)
             throws IOException {
-        throw new IOException(path + ": can't write");
+        if (writer == null)
+            throw new IOException(path + ": can't write");
+
+        OutputStream out = getOutputStream();
+
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    public int read(long position, ByteBuffer dst)
+            throws IOException {
+        PositionalReader reader = openReader();
+
+        try {
+            return reader.read(position, dst);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public ByteBuffer[] readVectored(List<FileRange> ranges)
+            throws IOException {
+        return readVectored(ranges, VectoredRead.DEFAULT_GAP);
+    }
+
+    public ByteBuffer[] readVectored(List<FileRange> ranges, int maxGap)
+            throws IOException {
+        final PositionalReader reader = openReader();
+
+        try {
+            // Stored data can be read by several workers at once, an
+            // inflating reader only sequentially.
+
+            int parallelism = reader instanceof ChannelReader || reader instanceof RegionReader
+                    ? VectoredRead.PARALLELISM : 1;
+
+            return VectoredRead.read(ranges, maxGap, parallelism, new VectoredRead.Factory() {
+                public PositionalReader open() {
+                    return new SharedReader(reader);
+                }
+            });
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Open a reader for the current entry. Stored entries are read from the
+     * archive at their offset; compressed ones are inflated from the start
+     * on backward seeks.
+     */
+
+    private PositionalReader openReader()
+            throws IOException {
+        ZipEntry entry = getEntry();
+
+        if (entry.getMethod() == ZipEntry.STORED) {
+            PositionalReader data = openData(entry);
+
+            if (data != null)
+                return data;
+        } else if (seekIndex != null && seekIndex.matches(entry)) {
+            PositionalReader data = openData(entry);
+
+            if (data != null)
+                return new IndexedReader(data, seekIndex, entry.getSize());
+        }
+
+        return new InflatingReader(entry);
+    }
+
+    /**
+     * Open a reader for the raw, possibly compressed, data of an entry;
+     * null if its offset is not known.
+     */
+
+    private PositionalReader openData(ZipEntry entry)
+            throws IOException {
+        if (nested != null)
+            return new RegionReader(nested.reader, getDataOffset(nested.reader, entry), entry.getCompressedSize(), false);
+
+        if (pool != null) {
+            FileChannel channel = pool.channel();
+
+            return new ChannelReader(channel, getDataOffset(channel, entry), entry.getCompressedSize(), false);
+        }
+
+        FileChannel channel = new FileInputStream(getBase()).getChannel();
+
+        try {
+            long offset = getDataOffset(channel, entry);
+
+            if (offset >= 0)
+                return new ChannelReader(channel, offset, entry.getCompressedSize(), true);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+
+        channel.close();
+        return null;
     }
 
     public void addPath(String path) {
@@ -276,7 +837,142 @@ public class ZipEntryFile
     }
 
     public String toString() {
-        return "ZIP (" + zip.getName() + ") " + path;
+        return "ZIP (" + getBase() + ") " + path;
+    }
+
+    public Closeable watch(FileEventListener listener) {
+        // An open archive does not change
+
+        return new Closeable() {
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Reader that leaves closing to the owner of the reader it wraps.
+     */
+
+    static class SharedReader
+            implements PositionalReader {
+        private PositionalReader reader;
+
+        SharedReader(PositionalReader reader) {
+            this.reader = reader;
+        }
+
+        public void close() {
+        }
+
+        public int read(long position, ByteBuffer dst)
+                throws IOException {
+            return reader.read(position, dst);
+        }
+
+        public long size()
+                throws IOException {
+            return reader.size();
+        }
+    }
+
+    class InflatingReader
+            implements PositionalReader {
+        private ZipEntry entry;
+        private InputStream in;
+        private long inPos;
+
+        InflatingReader(ZipEntry entry) {
+            this.entry = entry;
+        }
+
+        public void close()
+                throws IOException {
+            if (in != null)
+                in.close();
+        }
+
+        public int read(long position, ByteBuffer dst)
+                throws IOException {
+            if (position >= entry.getSize())
+                return -1;
+
+            if (in == null || position < inPos) {
+                close();
+                in = openEntry(entry);
+                inPos = 0;
+            }
+
+            while (inPos < position) {
+                long n = in.skip(position - inPos);
+
+                if (n <= 0)
+                    return -1;
+
+                inPos += n;
+            }
+
+            byte[] buf = new byte[Math.min(dst.remaining(), LocalFile.BUFSIZE)];
+            int n = in.read(buf);
+
+            if (n > 0) {
+                dst.put(buf, 0, n);
+                inPos += n;
+            }
+
+            return n;
+        }
+
+        public long size() {
+            return entry.getSize();
+        }
+    }
+
+    /**
+     * Reader for a deflated entry with a seek index. Reads continue from the
+     * current position where possible, otherwise inflating restarts at the
+     * checkpoint before the position.
+     */
+
+    static class IndexedReader
+            implements PositionalReader {
+        private PositionalReader data;
+        private SeekIndex index;
+        private long size;
+        private RawInflater inflater;
+
+        IndexedReader(PositionalReader data, SeekIndex index, long size) {
+            this.data = data;
+            this.index = index;
+            this.size = size;
+        }
+
+        public void close()
+                throws IOException {
+            data.close();
+        }
+
+        public int read(long position, ByteBuffer dst)
+                throws IOException {
+            if (position >= size)
+                return -1;
+
+            SeekIndex.Checkpoint cp = index.find(position);
+
+            if (inflater == null || position < inflater.getPosition()
+                    || (cp != null && cp.out > inflater.getPosition()))
+                inflater = new RawInflater(data, cp);
+
+            long gap = position - inflater.getPosition();
+
+            if (inflater.skip(gap) < gap)
+                return -1;
+
+            return inflater.read(dst);
+        }
+
+        public long size() {
+            return size;
+        }
     }
 
     class ZipEntryFileIterator
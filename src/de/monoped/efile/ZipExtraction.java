@@ -0,0 +1,345 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Extraction of an archive subtree. Files are handed out largest first to
+ * worker threads, each reading through its own archive handle and
+ * inflater. Local targets are written by all workers at once, into files
+ * presized to the entry size, and get the entries' modification times.
+ * Other targets are written one file at a time through the target itself.
+ * Entries that would land outside the target, through ".." components or
+ * absolute names, make the extraction fail before anything is written.
+ */
+
+class ZipExtraction {
+    private Sources sources;
+    private EFile target;
+    private String base;
+    private boolean local;
+    private ProgressListener listener;
+    private ArrayList<ZipNode> dirs, files;
+    private ArrayList<String> dirPaths, filePaths;
+    private Integer[] order;
+    private AtomicInteger next;
+    private AtomicLong count, bytes;
+    private AtomicReference<Throwable> failure;
+    private long start;
+
+    //----------------------------------------------------------------------
+
+    private ZipExtraction(Sources sources, EFile target, ProgressListener listener) {
+        this.sources = sources;
+        this.target = target;
+        this.listener = listener;
+        base = target.getPath();
+        local = target instanceof LocalFile;
+        dirs = new ArrayList<ZipNode>();
+        files = new ArrayList<ZipNode>();
+        dirPaths = new ArrayList<String>();
+        filePaths = new ArrayList<String>();
+        next = new AtomicInteger();
+        count = new AtomicLong();
+        bytes = new AtomicLong();
+        failure = new AtomicReference<Throwable>();
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Extract a file or directory tree into a target directory.
+     *
+     * @param node    File or directory to extract; a directory's contents
+     *                go directly into the target.
+     * @param threads Number of workers.
+     * @return Number of bytes written.
+     */
+
+    static long extract(ZipNode node, Sources sources, EFile target, int threads, ProgressListener listener)
+            throws IOException {
+        ZipExtraction ex = new ZipExtraction(sources, target, listener);
+
+        if (node.isDirectory())
+            ex.collect(node, "");
+        else {
+            ex.files.add(node);
+            ex.filePaths.add(node.getName());
+        }
+
+        ex.checkPaths(ex.dirPaths);
+        ex.checkPaths(ex.filePaths);
+        return ex.run(threads);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Make sure that entry paths stay inside the target; local paths are
+     * compared canonically, so that links are resolved as well.
+     */
+
+    private void checkPaths(ArrayList<String> paths)
+            throws IOException {
+        String root;
+
+        if (local) {
+            root = new File(base).getCanonicalPath();
+
+            if (!root.endsWith(File.separator))
+                root += File.separator;
+        } else {
+            root = Path.normalizePath(base);
+
+            if (!root.endsWith("/"))
+                root += "/";
+        }
+
+        for (int i = 0; i < paths.size(); ++i) {
+            String path = paths.get(i),
+                    full = local ? new File(base, path).getCanonicalPath() : Path.normalizePath(base + "/" + path);
+
+            if (path.startsWith("/") || path.startsWith("\\") || !full.startsWith(root))
+                throw new ZipException(path + ": entry outside of the target directory");
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    private void collect(ZipNode dir, String prefix) {
+        for (Iterator it = dir.iterator(); it.hasNext(); ) {
+            ZipNode child = (ZipNode) it.next();
+            String path = prefix + child.getName();
+
+            if (child.isDirectory()) {
+                dirs.add(child);
+                dirPaths.add(path);
+                collect(child, path + "/");
+            } else {
+                files.add(child);
+                filePaths.add(path);
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    private long run(int threads)
+            throws IOException {
+        start = System.nanoTime();
+
+        // Directories first, parents before children
+
+        try {
+            for (int i = 0; i < dirPaths.size(); ++i)
+                if (local)
+                    new File(base, dirPaths.get(i)).mkdirs();
+                else {
+                    target.setPath(base + "/" + dirPaths.get(i));
+                    target.mkdirs();
+                }
+        } finally {
+            if (!local)
+                target.setPath(base);
+        }
+
+        // Large files first, so that no worker is left with one at the end
+
+        order = new Integer[files.size()];
+
+        final long[] sizes = new long[files.size()];
+
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+            sizes[i] = files.get(i).getEntry().getSize();
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return sizes[a] > sizes[b] ? -1 : sizes[a] < sizes[b] ? 1 : 0;
+            }
+        });
+
+        Thread[] workers = new Thread[Math.max(0, Math.min(threads, order.length) - 1)];
+
+        for (int i = 0; i < workers.length; ++i) {
+            workers[i] = new Thread("efile-extract") {
+                public void run() {
+                    work();
+                }
+            };
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+
+        work();
+
+        for (int i = 0; i < workers.length; ++i)
+            try {
+                workers[i].join();
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+
+        Throwable ex = failure.get();
+
+        if (ex instanceof IOException)
+            throw (IOException) ex;
+
+        if (ex instanceof RuntimeException)
+            throw (RuntimeException) ex;
+
+        if (ex instanceof Error)
+            throw (Error) ex;
+
+        // Directory times last, writing files changes them
+
+        if (local)
+            for (int i = dirs.size() - 1; i >= 0; --i) {
+                ZipEntry entry = dirs.get(i).getEntry();
+
+                if (entry != null && entry.getTime() > 0)
+                    new File(base, dirPaths.get(i)).setLastModified(entry.getTime());
+            }
+
+        return bytes.get();
+    }
+
+    //----------------------------------------------------------------------
+
+    private void work() {
+        Source source = null;
+
+        try {
+            int i;
+
+            while (failure.get() == null && (i = next.getAndIncrement()) < order.length) {
+                if (source == null)
+                    source = sources.open();
+
+                extract(source, order[i]);
+            }
+        } catch (Throwable ex) {
+            failure.compareAndSet(null, ex);
+        } finally {
+            if (source != null)
+                try {
+                    source.close();
+                } catch (IOException ex) {
+                }
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    private void extract(Source source, int i)
+            throws IOException {
+        ZipNode node = files.get(i);
+        ZipEntry entry = node.getEntry();
+        String path = filePaths.get(i);
+        InputStream in = source.open(node);
+        long n;
+
+        try {
+            if (local) {
+                File file = new File(base, path);
+
+                n = copy(in, new LocalFile(file.getPath()).getOutputStream(entry.getSize()));
+
+                if (entry.getTime() > 0)
+                    file.setLastModified(entry.getTime());
+            } else
+                synchronized (target) {
+                    try {
+                        target.setPath(base + "/" + path);
+                        n = copy(in, target.getOutputStream());
+                    } finally {
+                        target.setPath(base);
+                    }
+                }
+        } finally {
+            in.close();
+        }
+
+        long total = bytes.addAndGet(n),
+                c = count.incrementAndGet();
+
+        if (listener != null) {
+            listener.progress(path, c);
+
+            if (listener instanceof TransferListener)
+                ((TransferListener) listener).transferred(total, System.nanoTime() - start);
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    private static long copy(InputStream in, OutputStream out)
+            throws IOException {
+        byte[] buf = new byte[LocalFile.BUFSIZE];
+        long total = 0;
+        int n;
+
+        try {
+            while ((n = in.read(buf)) >= 0) {
+                out.write(buf, 0, n);
+                total += n;
+            }
+        } finally {
+            out.close();
+        }
+
+        return total;
+    }
+
+    //----------------------------------------------------------------------
+    //----------------------------------------------------------------------
+
+    /**
+     * Opens an archive handle for a worker.
+     */
+
+    interface Sources {
+        Source open() throws IOException;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Archive handle of one worker.
+     */
+
+    interface Source
+            extends Closeable {
+        InputStream open(ZipNode node) throws IOException;
+    }
+}
@@ -0,0 +1,627 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/**
+ * Compact index of a zip archive: the directory tree and the entry data
+ * needed to read entries, held in one buffer of fixed-width columns plus
+ * a pool of UTF-8 names. Nodes are numbered breadth first, so the children
+ * of a directory are consecutive and sorted by name.
+ *
+ * The buffer is laid out exactly like the sidecar file, so an index can be
+ * written as it is and later mapped instead of being rebuilt. A sidecar
+ * is only used if the archive's size, modification time and the CRC of its
+ * central directory match.
+ */
+
+class ZipIndex {
+    static final int MAGIC = 0x585a4645,     // "EFZX"
+            VERSION = 1;
+
+    // Bits of the info column above the compression method
+
+    static final int DIRECTORY = 1 << 16,
+            HAS_ENTRY = 1 << 17;
+
+    private static final int HEADER = 40;
+
+    private ByteBuffer buf;
+    private int count;
+    private int offsets, csizes, sizes, parents, firstChildren, childCounts,
+            nameOffsets, nameLengths, times, crcs, infos, names;
+
+    //----------------------------------------------------------------------
+
+    private ZipIndex(ByteBuffer buf) {
+        this.buf = buf.order(ByteOrder.LITTLE_ENDIAN);
+        count = buf.getInt(32);
+        layout(count);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Compute the column offsets.
+     *
+     * @return Size of the buffer without the name pool.
+     */
+
+    private long layout(int n) {
+        long pos = HEADER;
+
+        offsets = (int) pos;
+        csizes = (int) (pos += 8L * n);
+        sizes = (int) (pos += 8L * n);
+        parents = (int) (pos += 8L * n);
+        firstChildren = (int) (pos += 4L * n);
+        childCounts = (int) (pos += 4L * n);
+        nameOffsets = (int) (pos += 4L * n);
+        nameLengths = (int) (pos += 4L * n);
+        times = (int) (pos += 4L * n);
+        crcs = (int) (pos += 4L * n);
+        infos = (int) (pos += 4L * n);
+        names = (int) (pos += 4L * n);
+        return pos;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return the index of an archive, mapping the sidecar if it matches the
+     * archive. Otherwise the index is built from the central directory and
+     * written to the sidecar; failure to write the sidecar is ignored.
+     *
+     * @param archive Zip archive.
+     * @param sidecar Index file, null to build the index in memory only.
+     */
+
+    static ZipIndex open(File archive, File sidecar)
+            throws IOException {
+        FileChannel channel = new FileInputStream(archive).getChannel();
+
+        try {
+            long size = channel.size(),
+                    time = archive.lastModified();
+            long[] end = ZipDirectory.readEnd(channel);
+            ByteBuffer cd = ZipDirectory.readCentral(channel, end);
+            CRC32 crc = new CRC32();
+
+            crc.update(cd.array(), 0, cd.limit());
+
+            if (sidecar != null && sidecar.isFile()) {
+                ZipIndex index = load(sidecar);
+
+                if (index != null && index.buf.getLong(8) == size && index.buf.getLong(16) == time
+                        && index.buf.getLong(24) == crc.getValue())
+                    return index;
+            }
+
+            ZipIndex index = build(ZipDirectory.parse(cd, end).getEntries(), size, time, crc.getValue());
+
+            if (sidecar != null)
+                try {
+                    index.write(sidecar);
+                } catch (IOException ex) {
+                    // read-only location, keep the index in memory
+                }
+
+            return index;
+        } finally {
+            channel.close();
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Build the in-memory index of an archive that is read through a reader,
+     * e.g. one nested in another archive.
+     */
+
+    static ZipIndex read(PositionalReader reader)
+            throws IOException {
+        return build(ZipDirectory.read(reader).getEntries(), reader.size(), 0, 0);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Map a sidecar file; return null if it is not an index of this version.
+     */
+
+    static ZipIndex load(File sidecar)
+            throws IOException {
+        FileChannel channel = new FileInputStream(sidecar).getChannel();
+
+        try {
+            if (channel.size() < HEADER || channel.size() > Integer.MAX_VALUE)
+                return null;
+
+            ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            map.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION)
+                return null;
+
+            ZipIndex index = new ZipIndex(map);
+
+            if (index.names + map.getInt(36) != map.capacity())
+                return null;
+
+            return index;
+        } finally {
+            channel.close();
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Write the index to a file. The file is written to a temporary file
+     * next to it that then replaces it, so readers never see a partial
+     * index.
+     */
+
+    void write(File sidecar)
+            throws IOException {
+        File tmp = Utils.tempFile(sidecar);
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        boolean ok = false;
+
+        try {
+            ByteBuffer data = buf.duplicate();
+
+            data.clear();
+
+            FileChannel channel = out.getChannel();
+
+            while (data.hasRemaining())
+                channel.write(data);
+
+            out.close();
+            ok = true;
+        } finally {
+            if (!ok) {
+                out.close();
+                tmp.delete();
+            }
+        }
+
+        Utils.replace(tmp, sidecar);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Build an index from the entries of a central directory.
+     */
+
+    static ZipIndex build(List<ZipDirectory.Entry> entries, long archiveSize, long archiveTime, long cdCrc) {
+        BuildNode root = new BuildNode("", null),
+                lastBase = root;
+        String lastDir = "";
+
+        for (int i = 0; i < entries.size(); ++i) {
+            ZipDirectory.Entry e = entries.get(i);
+            String name = e.name;
+            int end = name.endsWith("/") ? name.length() - 1 : name.length(),
+                    slash = name.lastIndexOf('/', end - 1);
+            BuildNode base;
+
+            // Entries of a directory usually follow each other, so reuse
+            // the last directory if the prefix is the same
+
+            if (slash + 1 == lastDir.length() && name.startsWith(lastDir))
+                base = lastBase;
+            else {
+                base = root;
+
+                for (int from = 0, to; from <= slash; from = to + 1) {
+                    to = name.indexOf('/', from);
+
+                    if (to > from)
+                        base = base.child(name.substring(from, to));
+                }
+
+                lastDir = name.substring(0, slash + 1);
+                lastBase = base;
+            }
+
+            if (end > slash + 1)
+                base = base.child(name.substring(slash + 1, end));
+
+            if (base != root && base.entry == null)
+                base.entry = e;
+        }
+
+        // Number nodes breadth first, children sorted by name
+
+        ArrayList<BuildNode> order = new ArrayList<BuildNode>();
+        int poolSize = 0;
+
+        order.add(root);
+
+        for (int i = 0; i < order.size(); ++i) {
+            BuildNode node = order.get(i);
+
+            poolSize += node.utf8.length;
+
+            if (node.children != null) {
+                Collections.sort(node.children, BuildNode.BY_NAME);
+                node.first = order.size();
+                order.addAll(node.children);
+            }
+        }
+
+        int n = order.size();
+        ZipIndex index = new ZipIndex(n, poolSize);
+        ByteBuffer b = index.buf,
+                pooled = b.duplicate();
+        int pool = 0;
+
+        pooled.position(index.names);
+
+        b.putLong(8, archiveSize);
+        b.putLong(16, archiveTime);
+        b.putLong(24, cdCrc);
+
+        for (int i = 0; i < n; ++i) {
+            BuildNode node = order.get(i);
+            ZipDirectory.Entry e = node.entry;
+            int info = 0;
+
+            node.id = i;
+
+            if (node.children != null || e != null && e.name.endsWith("/"))
+                info |= DIRECTORY;
+
+            if (e != null) {
+                info |= HAS_ENTRY | e.method;
+                b.putLong(index.offsets + 8 * i, e.offset);
+                b.putLong(index.csizes + 8 * i, e.csize);
+                b.putLong(index.sizes + 8 * i, e.size);
+                b.putInt(index.times + 4 * i, (int) e.dosTime);
+                b.putInt(index.crcs + 4 * i, (int) e.crc);
+            } else
+                b.putLong(index.offsets + 8 * i, -1);
+
+            b.putInt(index.parents + 4 * i, node.parent != null ? node.parent.id : -1);
+            b.putInt(index.firstChildren + 4 * i, node.first);
+            b.putInt(index.childCounts + 4 * i, node.children != null ? node.children.size() : 0);
+            b.putInt(index.nameOffsets + 4 * i, pool);
+            b.putInt(index.nameLengths + 4 * i, node.utf8.length);
+            b.putInt(index.infos + 4 * i, info);
+            pooled.put(node.utf8);
+            pool += node.utf8.length;
+        }
+
+        return index;
+    }
+
+    //----------------------------------------------------------------------
+
+    private ZipIndex(int n, int poolSize) {
+        long size = layout(n) + poolSize;
+
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Archive too large to index: " + n + " entries");
+
+        count = n;
+        buf = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(0, MAGIC);
+        buf.putInt(4, VERSION);
+        buf.putInt(32, n);
+        buf.putInt(36, poolSize);
+    }
+
+    //----------------------------------------------------------------------
+
+    int getChildCount(int i) {
+        return buf.getInt(childCounts + 4 * i);
+    }
+
+    //----------------------------------------------------------------------
+
+    long getCompressedSize(int i) {
+        return buf.getLong(csizes + 8 * i);
+    }
+
+    //----------------------------------------------------------------------
+
+    long getCrc(int i) {
+        return buf.getInt(crcs + 4 * i) & 0xffffffffL;
+    }
+
+    //----------------------------------------------------------------------
+
+    int getFirstChild(int i) {
+        return buf.getInt(firstChildren + 4 * i);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return the offset of the entry's local header, -1 for directories
+     * that have no entry of their own.
+     */
+
+    long getHeaderOffset(int i) {
+        return buf.getLong(offsets + 8 * i);
+    }
+
+    //----------------------------------------------------------------------
+
+    int getMethod(int i) {
+        return buf.getInt(infos + 4 * i) & 0xffff;
+    }
+
+    //----------------------------------------------------------------------
+
+    String getName(int i) {
+        int len = buf.getInt(nameLengths + 4 * i);
+        byte[] bytes = new byte[len];
+        ByteBuffer b = buf.duplicate();
+
+        b.position(names + buf.getInt(nameOffsets + 4 * i));
+        b.get(bytes);
+        return new String(bytes, ZipDirectory.UTF8);
+    }
+
+    //----------------------------------------------------------------------
+
+    int getParent(int i) {
+        return buf.getInt(parents + 4 * i);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return the archive path of a node, as used in the archive.
+     */
+
+    String getPath(int i) {
+        StringBuilder s = new StringBuilder();
+
+        for (int p = i; p > 0; p = getParent(p))
+            s.insert(0, getName(p)).insert(0, '/');
+
+        if (isDirectory(i))
+            s.append('/');
+
+        return s.length() > 0 ? s.substring(1) : "";
+    }
+
+    //----------------------------------------------------------------------
+
+    long getSize(int i) {
+        return buf.getLong(sizes + 8 * i);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return the modification time in milliseconds, -1 if unknown.
+     */
+
+    long getTime(int i) {
+        long dos = buf.getInt(times + 4 * i) & 0xffffffffL;
+
+        if (!hasEntry(i) || dos == 0)
+            return -1;
+
+        return new GregorianCalendar((int) ((dos >> 25) & 0x7f) + 1980, (int) ((dos >> 21) & 0x0f) - 1,
+                (int) ((dos >> 16) & 0x1f), (int) ((dos >> 11) & 0x1f), (int) ((dos >> 5) & 0x3f),
+                (int) ((dos << 1) & 0x3e)).getTimeInMillis();
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Convert a time in milliseconds to MS-DOS date and time.
+     *
+     * @param cal Calendar to use, reused across calls.
+     */
+
+    static long toDosTime(long time, GregorianCalendar cal) {
+        cal.setTimeInMillis(time);
+
+        int year = cal.get(GregorianCalendar.YEAR);
+
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+
+        return (year - 1980) << 25 | (cal.get(GregorianCalendar.MONTH) + 1) << 21
+                | cal.get(GregorianCalendar.DAY_OF_MONTH) << 16 | cal.get(GregorianCalendar.HOUR_OF_DAY) << 11
+                | cal.get(GregorianCalendar.MINUTE) << 5 | cal.get(GregorianCalendar.SECOND) >> 1;
+    }
+
+    //----------------------------------------------------------------------
+
+    boolean hasEntry(int i) {
+        return (buf.getInt(infos + 4 * i) & HAS_ENTRY) != 0;
+    }
+
+    //----------------------------------------------------------------------
+
+    boolean isDirectory(int i) {
+        return (buf.getInt(infos + 4 * i) & DIRECTORY) != 0;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Find a child by name with a binary search, -1 if not found.
+     */
+
+    int getChild(int dir, String name) {
+        byte[] key = name.getBytes(ZipDirectory.UTF8);
+        int lo = getFirstChild(dir),
+                hi = lo + getChildCount(dir) - 1;
+
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1,
+                    cmp = compareName(mid, key);
+
+            if (cmp < 0)
+                lo = mid + 1;
+            else if (cmp > 0)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+
+        return -1;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Find a node by path, -1 if not found.
+     */
+
+    int lookup(String path) {
+        String[] comps = path.split("/");
+        int node = 0;
+
+        for (int i = 0; i < comps.length && node >= 0; ++i)
+            if (comps[i].length() > 0)
+                node = getChild(node, comps[i]);
+
+        return node;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return the memory used by the index; zero for a mapped sidecar.
+     */
+
+    long getMemory() {
+        return buf.isDirect() ? 0 : buf.capacity();
+    }
+
+    //----------------------------------------------------------------------
+
+    int size() {
+        return count;
+    }
+
+    //----------------------------------------------------------------------
+
+    ZipEntry toZipEntry(int i) {
+        ZipEntry entry = new ZipEntry(getPath(i));
+        long time = getTime(i);
+
+        entry.setMethod(getMethod(i));
+        entry.setSize(getSize(i));
+        entry.setCompressedSize(getCompressedSize(i));
+        entry.setCrc(getCrc(i));
+
+        if (time >= 0)
+            entry.setTime(time);
+
+        return entry;
+    }
+
+    //----------------------------------------------------------------------
+
+    private int compareName(int i, byte[] key) {
+        int off = names + buf.getInt(nameOffsets + 4 * i),
+                len = buf.getInt(nameLengths + 4 * i),
+                n = Math.min(len, key.length);
+
+        for (int k = 0; k < n; ++k) {
+            int d = (buf.get(off + k) & 0xff) - (key[k] & 0xff);
+
+            if (d != 0)
+                return d;
+        }
+
+        return len - key.length;
+    }
+
+    //----------------------------------------------------------------------
+    //----------------------------------------------------------------------
+
+    /**
+     * Temporary tree node while building an index.
+     */
+
+    static class BuildNode {
+        static final Comparator<BuildNode> BY_NAME = new Comparator<BuildNode>() {
+            public int compare(BuildNode a, BuildNode b) {
+                int n = Math.min(a.utf8.length, b.utf8.length);
+
+                for (int k = 0; k < n; ++k) {
+                    int d = (a.utf8[k] & 0xff) - (b.utf8[k] & 0xff);
+
+                    if (d != 0)
+                        return d;
+                }
+
+                return a.utf8.length - b.utf8.length;
+            }
+        };
+
+        byte[] utf8;
+        BuildNode parent;
+        ArrayList<BuildNode> children;
+        HashMap<String, BuildNode> childMap;
+        ZipDirectory.Entry entry;
+        int id, first;
+
+        BuildNode(String name, BuildNode parent) {
+            utf8 = name.getBytes(ZipDirectory.UTF8);
+            this.parent = parent;
+        }
+
+        BuildNode child(String name) {
+            if (children == null) {
+                children = new ArrayList<BuildNode>();
+                childMap = new HashMap<String, BuildNode>();
+            }
+
+            BuildNode child = childMap.get(name);
+
+            if (child == null) {
+                child = new BuildNode(name, this);
+                children.add(child);
+                childMap.put(name, child);
+            }
+
+            return child;
+        }
+    }
+}
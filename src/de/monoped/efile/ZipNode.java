@@ -17,24 +17,83 @@
 
 package de.monoped.efile;
 
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.zip.ZipEntry;
 
+/**
+ * Tree node backed by a ZipIndex. Names and entry data stay in the index;
+ * a node only holds its index number, and the child nodes of a directory
+ * are created when they are first looked up or listed.
+ */
+
 class ZipNode
         extends Node {
-    private ZipEntry entry;
+    private ZipIndex index;
+    private int id;
+    private ZipNode[] kids;
+
+    ZipNode(ZipIndex index, int id, Node parent) {
+        super(parent, null);
+        this.index = index;
+        this.id = id;
+    }
+
+    /**
+     * Return the child at a position, creating it on first use.
+     */
+
+    private synchronized ZipNode child(int pos) {
+        if (kids == null)
+            kids = new ZipNode[index.getChildCount(id)];
+
+        if (kids[pos] == null)
+            kids[pos] = new ZipNode(index, index.getFirstChild(id) + pos, this);
+
+        return kids[pos];
+    }
+
+    Node getChild(String name) {
+        int i = index.getChild(id, name);
+
+        return i >= 0 ? child(i - index.getFirstChild(id)) : null;
+    }
 
-    ZipNode(ZipEntry entry, Node parent, String name) {
-        super(parent, name);
-        this.entry = entry;
+    int getChildCount() {
+        return index.getChildCount(id);
     }
 
     ZipEntry getEntry() {
-        return entry;
+        return index.hasEntry(id) ? index.toZipEntry(id) : null;
+    }
+
+    /**
+     * Return the archive offset of the entry's local header, -1 if unknown.
+     */
+
+    long getHeaderOffset() {
+        return index.getHeaderOffset(id);
+    }
+
+    ZipIndex getIndex() {
+        return index;
+    }
+
+    String getName() {
+        return id == 0 ? "" : index.getName(id);
     }
 
     boolean isDirectory() {
-        return entry != null && entry.isDirectory() || super.isDirectory();
+        return index.isDirectory(id);
     }
 
+    public Iterator iterator() {
+        int n = getChildCount();
+
+        for (int i = 0; i < n; ++i)
+            child(i);
+
+        return n > 0 ? Arrays.asList(kids).iterator() : super.iterator();
+    }
 }
 
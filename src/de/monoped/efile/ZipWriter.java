@@ -0,0 +1,1280 @@
+/* This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * monoped@users.sourceforge.net
+ */
+
+package de.monoped.efile;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a zip archive to any EFile, compressing on all cores. Entries may
+ * be added from several threads at once. Entry data is cut into blocks
+ * that are deflated in parallel, each primed with the last 32 KB of the
+ * block before it and ended with a sync flush, so the concatenated blocks
+ * form one deflate stream (the scheme pigz uses). A finished entry is
+ * appended to the archive as a whole; entries appear in the order in
+ * which they are completed.
+ *
+ * An entry that grows beyond a few blocks is streamed instead: its blocks
+ * are written in order as they are compressed, followed by a data
+ * descriptor, so that its size does not matter. Only one entry streams at
+ * a time; entries finished or grown while it does are held in memory
+ * until it is done, so large entries are best written one after another.
+ *
+ * An existing archive can be opened with append(): new and replaced
+ * entries are written behind its end record, and a new central directory
+ * and end record on close. Until then the old archive stays valid; if
+ * writing fails, the file is cut back to its old length. (Should the
+ * process die before close(), cutting the file to its old length restores
+ * the archive.) The old central directory and the data of replaced and
+ * deleted entries stay in the archive until compact() is run.
+ *
+ * <pre>
+ * ZipWriter writer = new ZipWriter(target);
+ *
+ * writer.getFile("/docs/readme.txt").putBytes(bytes);
+ * writer.close();
+ * </pre>
+ */
+
+public class ZipWriter
+        implements Closeable {
+    static final int BLOCK = 128 * 1024,
+            DICT = 32 * 1024;
+
+    // Entries with this many blocks are streamed
+
+    private static final int STREAM = 8;
+
+    private static final long MAX32 = 0xffffffffL;
+    private static final int MAX16 = 0xffff,
+            DESC_SIG = 0x08074b50;
+
+    private String name;
+    private OutputStream out;
+    private long written;
+    private int level;
+    private ExecutorService pool;
+    private Semaphore inFlight;
+    private ArrayList<ZipDirectory.Entry> central;
+    private HashSet<String> names;
+    private HashSet<Pending> open;
+    private Pending streaming;
+    private ArrayList<Pending> waiting, candidates;
+    private GregorianCalendar cal;
+    private int unfinished;
+    private IOException failure;
+    private boolean closed;
+
+    // Append mode: the archive and its old length, its old central
+    // directory, old entries by name that may still be replaced, and names
+    // of dropped old entries
+
+    private RandomAccessFile file;
+    private long start;
+    private ByteBuffer oldCentral;
+    private HashMap<String, ZipDirectory.Entry> existing;
+    private HashSet<String> dropped;
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Create an archive in a file, compressing with the default level on
+     * all available processors.
+     */
+
+    public ZipWriter(EFile target)
+            throws IOException {
+        this(target.getOutputStream(), target.toString(), Deflater.DEFAULT_COMPRESSION,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Create an archive.
+     *
+     * @param out     Receives the archive; closed by close().
+     * @param name    Name for messages.
+     * @param level   Deflate level, 0-9 or Deflater.DEFAULT_COMPRESSION.
+     * @param threads Number of compressing threads.
+     */
+
+    public ZipWriter(OutputStream out, String name, int level, int threads) {
+        this.out = new BufferedOutputStream(out, LocalFile.BUFSIZE);
+        this.name = name;
+        this.level = level;
+        threads = Math.max(1, threads);
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "efile-deflate");
+
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        // Bounds the uncompressed blocks waiting for a thread
+
+        inFlight = new Semaphore(4 * threads);
+        central = new ArrayList<ZipDirectory.Entry>();
+        names = new HashSet<String>();
+        open = new HashSet<Pending>();
+        waiting = new ArrayList<Pending>();
+        candidates = new ArrayList<Pending>();
+        cal = new GregorianCalendar();
+        existing = new HashMap<String, ZipDirectory.Entry>();
+        dropped = new HashSet<String>();
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Open an existing archive for adding, replacing and deleting entries.
+     */
+
+    public static ZipWriter append(File archive)
+            throws IOException {
+        return append(archive, Deflater.DEFAULT_COMPRESSION, Runtime.getRuntime().availableProcessors());
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Open an existing archive for adding, replacing and deleting entries.
+     *
+     * @param level   Deflate level, 0-9 or Deflater.DEFAULT_COMPRESSION.
+     * @param threads Number of compressing threads.
+     */
+
+    public static ZipWriter append(File archive, int level, int threads)
+            throws IOException {
+        RandomAccessFile file = new RandomAccessFile(archive, "rw");
+
+        try {
+            FileChannel channel = file.getChannel();
+            long[] end = ZipDirectory.readEnd(channel);
+            ByteBuffer cd = ZipDirectory.readCentral(channel, end);
+            ZipDirectory dir = ZipDirectory.parse(cd, end);
+
+            // The new central directory is written with file offsets, so
+            // records that counted from the start of a prefixed archive
+            // are changed to match
+
+            if (end[3] != 0)
+                for (int i = 0; i < dir.getEntries().size(); ++i)
+                    patchOffset(cd, dir.getEntries().get(i));
+
+            // New entries go behind the end record, so that the old archive
+            // stays intact until the new end record is written
+
+            long start = channel.size();
+
+            channel.position(start);
+
+            ZipWriter writer = new ZipWriter(Channels.newOutputStream(channel), archive.getPath(), level, threads);
+
+            writer.file = file;
+            writer.start = start;
+            writer.written = start;
+            writer.oldCentral = cd;
+            writer.central.addAll(dir.getEntries());
+
+            for (int i = 0; i < dir.getEntries().size(); ++i) {
+                ZipDirectory.Entry e = dir.getEntries().get(i);
+
+                writer.existing.put(e.name, e);
+            }
+
+            return writer;
+        } catch (IOException ex) {
+            file.close();
+            throw ex;
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Remove the data of replaced and deleted entries from an archive. The
+     * live entries are copied to a temporary file, which then replaces the
+     * archive. Data in front of the first entry is not kept.
+     *
+     * @return Number of bytes reclaimed.
+     */
+
+    public static long compact(File archive)
+            throws IOException {
+        FileChannel in = new FileInputStream(archive).getChannel();
+        long before = in.size();
+        File tmp = null;
+        ZipWriter writer = null;
+
+        try {
+            tmp = Utils.tempFile(archive);
+
+            long[] end = ZipDirectory.readEnd(in);
+            ByteBuffer cd = ZipDirectory.readCentral(in, end);
+            ArrayList<ZipDirectory.Entry> entries = ZipDirectory.parse(cd, end).getEntries();
+            ArrayList<ZipDirectory.Entry> byOffset = new ArrayList<ZipDirectory.Entry>(entries);
+            HashMap<Long, Long> moved = new HashMap<Long, Long>();
+
+            Collections.sort(byOffset, new Comparator<ZipDirectory.Entry>() {
+                public int compare(ZipDirectory.Entry a, ZipDirectory.Entry b) {
+                    return a.offset < b.offset ? -1 : a.offset > b.offset ? 1 : 0;
+                }
+            });
+
+            writer = new ZipWriter(new FileOutputStream(tmp), tmp.getPath(), Deflater.DEFAULT_COMPRESSION, 1);
+            writer.oldCentral = cd;
+
+            // Copy local headers and data in archive order; entries sharing
+            // data are copied once
+
+            byte[] buf = new byte[LocalFile.BUFSIZE];
+
+            for (int i = 0; i < byOffset.size(); ++i) {
+                ZipDirectory.Entry e = byOffset.get(i);
+
+                if (!moved.containsKey(e.offset)) {
+                    long span = localSpan(in, e);
+
+                    moved.put(e.offset, writer.written);
+
+                    for (long pos = e.offset, n = span; n > 0; ) {
+                        int k = in.read(ByteBuffer.wrap(buf, 0, (int) Math.min(n, buf.length)), pos);
+
+                        if (k < 0)
+                            throw new ZipException(archive + ": truncated entry " + e.name);
+
+                        writer.out.write(buf, 0, k);
+                        pos += k;
+                        n -= k;
+                    }
+
+                    writer.written += span;
+                }
+            }
+
+            for (int i = 0; i < entries.size(); ++i) {
+                ZipDirectory.Entry e = entries.get(i);
+
+                e.offset = moved.get(e.offset);
+                patchOffset(cd, e);
+                writer.central.add(e);
+            }
+
+            writer.close();
+            writer = null;
+        } catch (IOException ex) {
+            if (tmp != null)
+                tmp.delete();
+
+            throw ex;
+        } finally {
+            in.close();
+
+            if (writer != null)
+                writer.abort();
+        }
+
+        Utils.replace(tmp, archive);
+        return before - archive.length();
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return the length of an entry's local header, data and data
+     * descriptor.
+     */
+
+    private static long localSpan(FileChannel channel, ZipDirectory.Entry e)
+            throws IOException {
+        ByteBuffer loc = ZipDirectory.readAt(channel, e.offset, ZipDirectory.LOC_HDR);
+
+        if (loc.getInt(0) != ZipDirectory.LOC_SIG)
+            throw new ZipException("Invalid local header at " + e.offset);
+
+        int nameLen = loc.getShort(26) & 0xffff,
+                extraLen = loc.getShort(28) & 0xffff;
+        long span = ZipDirectory.LOC_HDR + nameLen + extraLen + e.csize;
+
+        if ((loc.getShort(6) & 8) != 0) {
+            long pos = e.offset + span;
+
+            if (pos + 4 <= channel.size() && ZipDirectory.readAt(channel, pos, 4).getInt(0) == DESC_SIG)
+                span += 4;
+
+            // Sizes in the descriptor are 8 bytes if the local header has a
+            // zip64 field
+
+            boolean zip64 = e.csize >= MAX32 || e.size >= MAX32;
+
+            if (extraLen > 0) {
+                ByteBuffer extra = ZipDirectory.readAt(channel, e.offset + ZipDirectory.LOC_HDR + nameLen, extraLen);
+
+                for (int p = 0; p + 4 <= extraLen; p += 4 + (extra.getShort(p + 2) & 0xffff))
+                    if ((extra.getShort(p) & 0xffff) == 1)
+                        zip64 = true;
+            }
+
+            span += zip64 ? 20 : 12;
+        }
+
+        return span;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Store an entry's new offset in its raw central record.
+     */
+
+    private static void patchOffset(ByteBuffer cd, ZipDirectory.Entry e) {
+        int pos = e.cenPos;
+
+        if (cd.getInt(pos + 42) != -1) {
+            cd.putInt(pos + 42, (int) e.offset);
+            return;
+        }
+
+        // Offset is in the zip64 extra field, behind the sizes it replaces
+
+        int p = pos + ZipDirectory.CEN_HDR + (cd.getShort(pos + 28) & 0xffff),
+                end = p + (cd.getShort(pos + 30) & 0xffff);
+
+        while (p + 4 <= end) {
+            int tag = cd.getShort(p) & 0xffff,
+                    sz = cd.getShort(p + 2) & 0xffff;
+
+            if (tag == 1) {
+                int q = p + 4;
+
+                if (cd.getInt(pos + 24) == -1)
+                    q += 8;
+
+                if (cd.getInt(pos + 20) == -1)
+                    q += 8;
+
+                cd.putLong(q, e.offset);
+                return;
+            }
+
+            p += 4 + sz;
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Stop the threads and close the output without writing a central
+     * directory.
+     */
+
+    private void abort() {
+        pool.shutdownNow();
+
+        if (file != null) {
+            restore();
+            return;
+        }
+
+        try {
+            out.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Cut an archive being appended to back to its old length, which
+     * leaves the old archive as it was, and close it. Buffered output is
+     * dropped.
+     */
+
+    private void restore() {
+        try {
+            file.setLength(start);
+        } catch (IOException ex) {
+        } finally {
+            try {
+                file.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Wait for all closed entries, write the central directory and close
+     * the output. Entries whose streams are still open are not written;
+     * writing to or closing such a stream afterwards fails.
+     */
+
+    public void close()
+            throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+
+            closed = true;
+
+            try {
+                while (unfinished > open.size() && failure == null) {
+                    // A streaming entry that is still open blocks the others
+
+                    if (streaming != null && open.remove(streaming)) {
+                        streaming.dead = true;
+                        streaming = null;
+                        --unfinished;
+                        next();
+                        continue;
+                    }
+
+                    wait();
+                }
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            } finally {
+                pool.shutdown();
+            }
+
+            for (Iterator<Pending> it = open.iterator(); it.hasNext(); ) {
+                it.next().dead = true;
+                --unfinished;
+            }
+
+            open.clear();
+
+            boolean complete = false;
+
+            try {
+                if (failure == null) {
+                    writeCentral();
+                    complete = true;
+                }
+            } finally {
+                if (file != null && !complete)
+                    restore();
+                else
+                    out.close();
+            }
+
+            if (failure != null)
+                throw failure;
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return a writable file in the archive; its getOutputStream, putBytes,
+     * copyFrom and mkdirs add entries, its delete methods drop entries of
+     * an appended archive.
+     */
+
+    public ZipEntryFile getFile(String path) {
+        return new ZipEntryFile(this, path);
+    }
+
+    //----------------------------------------------------------------------
+
+    String getName() {
+        return name;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Add a directory entry.
+     */
+
+    public void mkdir(String path)
+            throws IOException {
+        String entryName = toEntryName(path);
+
+        if (entryName.length() == 0)
+            return;
+
+        Pending pending = new Pending(reserve(entryName + "/"), System.currentTimeMillis(), false);
+
+        pending.done();
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Open an entry. The entry is compressed while it is written and added
+     * to the archive when the stream is closed.
+     */
+
+    public OutputStream newEntry(String path)
+            throws IOException {
+        return newEntry(path, System.currentTimeMillis());
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Open an entry with a given modification time.
+     */
+
+    public OutputStream newEntry(String path, long time)
+            throws IOException {
+        String entryName = toEntryName(path);
+
+        if (entryName.length() == 0)
+            throw new ZipException(name + ": empty entry name");
+
+        return new EntryStream(new Pending(reserve(entryName), time, true));
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Return true if a file or directory entry of this name has been opened.
+     */
+
+    synchronized boolean contains(String path, boolean directory) {
+        String entryName = toEntryName(path);
+
+        if (directory)
+            entryName += "/";
+
+        return names.contains(entryName) || existing.containsKey(entryName);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Delete an entry of the archive being appended to, or a directory
+     * entry of that name.
+     *
+     * @return True if an entry was deleted.
+     */
+
+    public synchronized boolean delete(String path) {
+        String entryName = toEntryName(path);
+
+        if (existing.remove(entryName) != null)
+            dropped.add(entryName);
+        else if (existing.remove(entryName + "/") != null)
+            dropped.add(entryName + "/");
+        else
+            return false;
+
+        return true;
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Delete an entry of the archive being appended to together with all
+     * old entries below it. Entries added through this writer are kept.
+     *
+     * @param listener Receives a report per deleted entry, may be null.
+     * @return Number of entries deleted.
+     */
+
+    public long deleteTree(String path, ProgressListener listener) {
+        String entryName = toEntryName(path),
+                prefix = entryName.length() > 0 ? entryName + "/" : "";
+        ArrayList<String> deleted = new ArrayList<String>();
+
+        synchronized (this) {
+            for (Iterator<String> it = existing.keySet().iterator(); it.hasNext(); ) {
+                String name = it.next();
+
+                if (name.equals(entryName) || name.startsWith(prefix)) {
+                    it.remove();
+                    dropped.add(name);
+                    deleted.add(name);
+                }
+            }
+        }
+
+        if (listener != null)
+            for (int i = 0; i < deleted.size(); ++i)
+                listener.progress("/" + deleted.get(i), i + 1);
+
+        return deleted.size();
+    }
+
+    //----------------------------------------------------------------------
+
+    private synchronized String reserve(String entryName)
+            throws IOException {
+        if (closed)
+            throw new IOException(name + ": closed");
+
+        if (failure != null)
+            throw failure;
+
+        if (!names.add(entryName))
+            throw new ZipException("duplicate entry: " + entryName);
+
+        // An old entry of this name is replaced
+
+        if (existing.remove(entryName) != null)
+            dropped.add(entryName);
+
+        return entryName;
+    }
+
+    //----------------------------------------------------------------------
+
+    private static String toEntryName(String path) {
+        String s = Path.normalizePath(path);
+
+        return s.substring(1);
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Append a finished entry; called by whichever thread completes it. A
+     * streamed entry gets its data descriptor; other entries wait while
+     * one streams.
+     */
+
+    private synchronized void append(Pending p) {
+        if (p.dead)
+            return;
+
+        if (streaming != null && streaming != p) {
+            p.complete = true;
+            waiting.add(p);
+            return;
+        }
+
+        try {
+            if (failure != null)
+                return;
+
+            if (p.started) {
+                writeBlocks(p);
+
+                ZipDirectory.Entry e = p.entry;
+                ByteBuffer desc = header(24);
+
+                desc.putInt(DESC_SIG);
+                desc.putInt((int) e.crc);
+                desc.putLong(e.csize);
+                desc.putLong(e.size);
+                write(desc);
+                central.add(e);
+                return;
+            }
+
+            ZipDirectory.Entry e = p.entry;
+
+            for (int i = 0; i < p.blocks.size(); ++i)
+                e.csize += p.blocks.get(i).length;
+
+            boolean zip64 = e.size >= MAX32 || e.csize >= MAX32;
+            byte[] nameBytes = e.name.getBytes(ZipDirectory.UTF8);
+            ByteBuffer loc = header(ZipDirectory.LOC_HDR + nameBytes.length + (zip64 ? 20 : 0));
+
+            e.offset = written;
+            loc.putInt(ZipDirectory.LOC_SIG);
+            loc.putShort((short) (zip64 ? 45 : 20));
+            loc.putShort((short) 0x800);             // UTF-8 names
+            loc.putShort((short) e.method);
+            loc.putInt((int) e.dosTime);
+            loc.putInt((int) e.crc);
+            loc.putInt(zip64 ? -1 : (int) e.csize);
+            loc.putInt(zip64 ? -1 : (int) e.size);
+            loc.putShort((short) nameBytes.length);
+            loc.putShort((short) (zip64 ? 20 : 0));
+            loc.put(nameBytes);
+
+            if (zip64) {
+                loc.putShort((short) 1);
+                loc.putShort((short) 16);
+                loc.putLong(e.size);
+                loc.putLong(e.csize);
+            }
+
+            write(loc);
+
+            for (int i = 0; i < p.blocks.size(); ++i) {
+                byte[] b = p.blocks.get(i);
+
+                out.write(b);
+                written += b.length;
+            }
+
+            central.add(e);
+        } catch (IOException ex) {
+            failure = ex;
+        } finally {
+            --unfinished;
+
+            if (streaming == p) {
+                streaming = null;
+                next();
+            }
+
+            notifyAll();
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Write the compressed blocks of an entry that are ready; called when a
+     * block is done. Starts streaming the entry if it is large enough and
+     * no other entry streams.
+     */
+
+    private synchronized void flush(Pending p) {
+        if (p.dead || p.complete || failure != null)
+            return;
+
+        if (!p.started) {
+            synchronized (p) {
+                if (p.blocks.size() < STREAM)
+                    return;
+            }
+
+            if (streaming != null) {
+                if (!p.queued) {
+                    p.queued = true;
+                    candidates.add(p);
+                }
+
+                return;
+            }
+
+            start(p);
+        }
+
+        if (streaming == p)
+            try {
+                writeBlocks(p);
+            } catch (IOException ex) {
+                failure = ex;
+                notifyAll();
+            }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * After a streamed entry: append the entries that finished meanwhile,
+     * then start streaming the next large one.
+     */
+
+    private void next() {
+        while (streaming == null && failure == null) {
+            if (waiting.size() > 0) {
+                Pending p = waiting.remove(0);
+
+                if (!p.dead)
+                    append(p);
+
+                continue;
+            }
+
+            Pending p = null;
+
+            while (p == null && candidates.size() > 0) {
+                p = candidates.remove(0);
+
+                if (p.dead || p.complete)
+                    p = null;
+            }
+
+            if (p == null)
+                return;
+
+            start(p);
+
+            try {
+                writeBlocks(p);
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Write the local header of an entry to be streamed: sizes follow in a
+     * zip64 data descriptor.
+     */
+
+    private void start(Pending p) {
+        ZipDirectory.Entry e = p.entry;
+        byte[] nameBytes = e.name.getBytes(ZipDirectory.UTF8);
+        ByteBuffer loc = header(ZipDirectory.LOC_HDR + nameBytes.length + 20);
+
+        streaming = p;
+        p.started = true;
+        e.offset = written;
+        e.descriptor = true;
+        loc.putInt(ZipDirectory.LOC_SIG);
+        loc.putShort((short) 45);
+        loc.putShort((short) 0x808);                 // UTF-8, descriptor
+        loc.putShort((short) ZipEntry.DEFLATED);
+        loc.putInt((int) e.dosTime);
+        loc.putInt(0);
+        loc.putInt(0);
+        loc.putInt(0);
+        loc.putShort((short) nameBytes.length);
+        loc.putShort((short) 20);
+        loc.put(nameBytes);
+        loc.putShort((short) 1);
+        loc.putShort((short) 16);
+        loc.putLong(0);
+        loc.putLong(0);
+
+        try {
+            write(loc);
+        } catch (IOException ex) {
+            failure = ex;
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Write the consecutive finished blocks of the streaming entry and let
+     * go of them.
+     */
+
+    private void writeBlocks(Pending p)
+            throws IOException {
+        for (; ; ) {
+            byte[] b;
+
+            synchronized (p) {
+                if (p.next == p.blocks.size() || (b = p.blocks.get(p.next)) == null)
+                    return;
+
+                p.blocks.set(p.next++, null);
+            }
+
+            out.write(b);
+            written += b.length;
+            p.entry.csize += b.length;
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    private synchronized void failed(Pending p, IOException ex) {
+        if (p.dead)
+            return;
+
+        if (failure == null)
+            failure = ex;
+
+        --unfinished;
+        notifyAll();
+    }
+
+    //----------------------------------------------------------------------
+
+    private static ByteBuffer header(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    //----------------------------------------------------------------------
+
+    private void write(ByteBuffer buf)
+            throws IOException {
+        out.write(buf.array(), 0, buf.position());
+        written += buf.position();
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Write the central directory and the end records, with zip64 records
+     * where counts, sizes or offsets do not fit.
+     */
+
+    private void writeCentral()
+            throws IOException {
+        long cdOffset = written;
+
+        long count = 0;
+
+        for (int i = 0; i < central.size(); ++i) {
+            ZipDirectory.Entry e = central.get(i);
+
+            // Old records are kept as they are, unless replaced or deleted
+
+            if (e.cenLen > 0) {
+                if (!dropped.contains(e.name)) {
+                    out.write(oldCentral.array(), e.cenPos, e.cenLen);
+                    written += e.cenLen;
+                    ++count;
+                }
+
+                continue;
+            }
+
+            ++count;
+
+            byte[] nameBytes = e.name.getBytes(ZipDirectory.UTF8);
+            int extra = (e.size >= MAX32 ? 8 : 0) + (e.csize >= MAX32 ? 8 : 0) + (e.offset >= MAX32 ? 8 : 0);
+            ByteBuffer cen = header(ZipDirectory.CEN_HDR + nameBytes.length + (extra > 0 ? 4 + extra : 0));
+
+            cen.putInt(ZipDirectory.CEN_SIG);
+            cen.putShort((short) 45);
+            cen.putShort((short) (extra > 0 || e.descriptor ? 45 : 20));
+            cen.putShort((short) (e.descriptor ? 0x808 : 0x800));
+            cen.putShort((short) e.method);
+            cen.putInt((int) e.dosTime);
+            cen.putInt((int) e.crc);
+            cen.putInt(e.csize >= MAX32 ? -1 : (int) e.csize);
+            cen.putInt(e.size >= MAX32 ? -1 : (int) e.size);
+            cen.putShort((short) nameBytes.length);
+            cen.putShort((short) (extra > 0 ? 4 + extra : 0));
+            cen.putShort((short) 0);                 // comment
+            cen.putShort((short) 0);                 // disk
+            cen.putShort((short) 0);                 // internal attributes
+            cen.putInt(e.name.endsWith("/") ? 0x10 : 0);
+            cen.putInt(e.offset >= MAX32 ? -1 : (int) e.offset);
+            cen.put(nameBytes);
+
+            if (extra > 0) {
+                cen.putShort((short) 1);
+                cen.putShort((short) extra);
+
+                if (e.size >= MAX32)
+                    cen.putLong(e.size);
+
+                if (e.csize >= MAX32)
+                    cen.putLong(e.csize);
+
+                if (e.offset >= MAX32)
+                    cen.putLong(e.offset);
+            }
+
+            write(cen);
+        }
+
+        long cdSize = written - cdOffset;
+
+        if (count >= MAX16 || cdSize >= MAX32 || cdOffset >= MAX32) {
+            long end64 = written;
+            ByteBuffer z = header(56 + ZipDirectory.END64_LOC_HDR);
+
+            z.putInt(ZipDirectory.END64_SIG);
+            z.putLong(44);                           // size of the rest
+            z.putShort((short) 45);
+            z.putShort((short) 45);
+            z.putInt(0);
+            z.putInt(0);
+            z.putLong(count);
+            z.putLong(count);
+            z.putLong(cdSize);
+            z.putLong(cdOffset);
+
+            z.putInt(ZipDirectory.END64_LOC_SIG);
+            z.putInt(0);
+            z.putLong(end64);
+            z.putInt(1);
+            write(z);
+        }
+
+        ByteBuffer end = header(ZipDirectory.END_HDR);
+
+        end.putInt(ZipDirectory.END_SIG);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) Math.min(count, MAX16));
+        end.putShort((short) Math.min(count, MAX16));
+        end.putInt(cdSize >= MAX32 ? -1 : (int) cdSize);
+        end.putInt(cdOffset >= MAX32 ? -1 : (int) cdOffset);
+        end.putShort((short) 0);
+        write(end);
+        out.flush();
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Deflate a block of an entry.
+     *
+     * @param dict Preceding block, null for the first block.
+     * @param last Finish the stream after this block.
+     */
+
+    private byte[] deflate(byte[] data, int len, byte[] dict, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+
+        try {
+            if (dict != null)
+                deflater.setDictionary(dict, dict.length - DICT, DICT);
+
+            deflater.setInput(data, 0, len);
+
+            byte[] buf = new byte[len + (len >> 3) + 64];
+            int n = 0;
+
+            if (last) {
+                deflater.finish();
+
+                while (!deflater.finished()) {
+                    if (n == buf.length)
+                        buf = Arrays.copyOf(buf, 2 * buf.length);
+
+                    n += deflater.deflate(buf, n, buf.length - n);
+                }
+            } else {
+                // Sync flush is complete when it leaves room in the buffer
+
+                for (; ; ) {
+                    n += deflater.deflate(buf, n, buf.length - n, Deflater.SYNC_FLUSH);
+
+                    if (n < buf.length)
+                        break;
+
+                    buf = Arrays.copyOf(buf, 2 * buf.length);
+                }
+            }
+
+            return Arrays.copyOf(buf, n);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    //----------------------------------------------------------------------
+    //----------------------------------------------------------------------
+
+    /**
+     * An entry being written: its blocks in order and a count of work that
+     * is still outstanding. The last block task or the closing stream,
+     * whichever is later, appends the entry. An entry whose stream is still
+     * open when the writer is closed is dead and never appended.
+     */
+
+    class Pending {
+        ZipDirectory.Entry entry;
+        ArrayList<byte[]> blocks;
+        AtomicInteger outstanding;
+        volatile boolean dead;
+
+        // Streaming state, guarded by the writer: header written, next
+        // block to write, waiting to stream, waiting to be appended
+
+        boolean started, queued, complete;
+        int next;
+
+        /**
+         * @param stream True if the entry is written through a stream,
+         *               which keeps it open until the stream is closed.
+         */
+
+        Pending(String entryName, long time, boolean stream) {
+            entry = new ZipDirectory.Entry();
+            entry.name = entryName;
+
+            synchronized (ZipWriter.this) {
+                entry.dosTime = ZipIndex.toDosTime(time, cal);
+                ++unfinished;
+
+                if (stream)
+                    open.add(this);
+            }
+
+            entry.method = ZipEntry.STORED;
+            blocks = new ArrayList<byte[]>();
+
+            // One count for the open stream
+
+            outstanding = new AtomicInteger(1);
+        }
+
+        void done() {
+            if (outstanding.decrementAndGet() == 0)
+                append(this);
+        }
+
+        /**
+         * Mark the stream closed; false if the writer dropped the entry.
+         */
+
+        boolean release() {
+            synchronized (ZipWriter.this) {
+                if (dead)
+                    return false;
+
+                open.remove(this);
+                return true;
+            }
+        }
+
+        void submit(final byte[] data, final int len, final byte[] dict, final boolean last)
+                throws IOException {
+            final int index;
+
+            synchronized (this) {
+                index = blocks.size();
+                blocks.add(null);
+            }
+
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+
+            outstanding.incrementAndGet();
+
+            try {
+                pool.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            byte[] b = deflate(data, len, dict, last);
+
+                            synchronized (Pending.this) {
+                                blocks.set(index, b);
+                            }
+
+                            flush(Pending.this);
+                        } catch (RuntimeException ex) {
+                            failed(Pending.this, new IOException(entry.name + ": " + ex));
+                            return;
+                        } finally {
+                            inFlight.release();
+                        }
+
+                        done();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                outstanding.decrementAndGet();
+                inFlight.release();
+                throw new IOException(entry.name + ": archive closed");
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------
+
+    /**
+     * Collects entry data into blocks and hands full blocks to the pool.
+     */
+
+    class EntryStream
+            extends OutputStream {
+        private Pending pending;
+        private byte[] block, previous;
+        private int fill;
+        private long size;
+        private CRC32 crc;
+        private boolean closed;
+
+        EntryStream(Pending pending) {
+            this.pending = pending;
+            block = new byte[BLOCK];
+            crc = new CRC32();
+        }
+
+        public void close()
+                throws IOException {
+            if (closed)
+                return;
+
+            closed = true;
+
+            if (!pending.release())
+                throw new IOException(pending.entry.name + ": archive closed before the entry");
+
+            ZipDirectory.Entry e = pending.entry;
+
+            e.method = ZipEntry.DEFLATED;
+            e.crc = crc.getValue();
+            e.size = size;
+            pending.submit(block, fill, previous, true);
+            block = previous = null;
+            pending.done();
+        }
+
+        public void write(int b)
+                throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len)
+                throws IOException {
+            if (closed)
+                throw new IOException(pending.entry.name + ": closed");
+
+            if (pending.dead)
+                throw new IOException(pending.entry.name + ": archive closed before the entry");
+
+            crc.update(b, off, len);
+            size += len;
+
+            while (len > 0) {
+                if (fill == BLOCK) {
+                    pending.submit(block, fill, previous, false);
+                    previous = block;
+                    block = new byte[BLOCK];
+                    fill = 0;
+                }
+
+                int n = Math.min(len, BLOCK - fill);
+
+                System.arraycopy(b, off, block, fill, n);
+                fill += n;
+                off += n;
+                len -= n;
+            }
+        }
+    }
+}